@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Output file that is written through a single buffered channel into a
+ * temporary file and moved into place when complete. Readers will either see
+ * the previous content or the complete new content, never a partially
+ * written file.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public class AtomicOutputFile implements Closeable {
+
+    /**
+     * Size of the write buffers.
+     */
+    private final static int BUFFER_SIZE = 1 << 16;
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * The file that should finally be written.
+     */
+    private final Path target;
+
+    /**
+     * The temporary file that is written to.
+     */
+    private final Path temporaryFile;
+
+    /**
+     * Channel to the temporary file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Buffered writer on top of the channel.
+     */
+    private final Writer writer;
+
+    /**
+     * Indicates if the temporary file has already been moved into place.
+     */
+    private boolean committed = false;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates a temporary file in the target's directory and opens it for
+     * writing.
+     * @param target The file that should finally be written
+     * @throws IOException If the temporary file could not be created
+     */
+    public AtomicOutputFile(Path target) throws IOException {
+        this.target = target.toAbsolutePath();
+        var dir = this.target.getParent();
+        var name = "." + this.target.getFileName() + ".";
+
+        // Do not use Files.createTempFile here: it would create the file with
+        // restrictive permissions that would end up on the target file.
+        FileChannel newChannel = null;
+        Path newFile = null;
+        while (newChannel == null) {
+            newFile = dir.resolve(name + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                newChannel = FileChannel.open(newFile, CREATE_NEW, WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                // Try another name
+            }
+        }
+        temporaryFile = newFile;
+        channel = newChannel;
+        writer = new BufferedWriter(
+            new OutputStreamWriter(
+                new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE),
+                StandardCharsets.UTF_8
+            ),
+            BUFFER_SIZE
+        );
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Accessors">
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the writer all content should be written to.
+     * @return Buffered UTF-8 writer
+     */
+    public Writer getWriter() {
+        return writer;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Writes the given file content atomically.
+     * @param target The file to be written
+     * @param content The file content
+     * @throws IOException If the file could not be written
+     */
+    public static void write(Path target, CharSequence content) throws IOException {
+        try (var file = new AtomicOutputFile(target)) {
+            file.getWriter().append(content);
+            file.commit();
+        }
+    }
+
+    /**
+     * Flushes all buffers to disk and moves the temporary file into place,
+     * replacing any existing target file.
+     * @throws IOException If the file could not be written or moved
+     */
+    public void commit() throws IOException {
+        writer.flush();
+        channel.force(false);
+        writer.close();
+        try {
+            Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporaryFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    /**
+     * Closes the temporary file. If the file has not been committed, it will
+     * be deleted and the target file stays untouched.
+     * @throws IOException If the temporary file could not be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) return;
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            // The content is discarded anyway
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    // </editor-fold>
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import de.ubergeek.imageconverter.ConversionStats.Stage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Batch job read from a job file (Java properties format).
+ * A job file lists the input images and their options, so any number of
+ * images with different options can be converted in one program call:
+ * <pre>
+ * # Options for all images (same names as the long command line options)
+ * defaults.preset=arduboy
+ * defaults.outputfile=sprites.c
+ * # Input images, converted in the order of their numbers
+ * image.1.input=player.png
+ * image.2.input=enemy.png
+ * image.2.invertcolors=true
+ * image.3.input=title.png
+ * image.3.mode=rgb565
+ * image.3.outputfile=title.c
+ * # Optional: directory for output files without explicit name, worker threads
+ * directory=generated
+ * threads=4
+ * </pre>
+ * Relative paths are resolved against the directory of the job file. Images
+ * with the same output file are written into that file in job order. Every
+ * input file is decoded only once, even if it is listed several times, and
+ * images are converted in parallel.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public class BatchJob {
+
+    /**
+     * A single image of the job.
+     */
+    public static class Entry {
+
+        private final String inputFilename;
+        private final ConverterOptions options;
+
+        /**
+         * Creates a job entry.
+         * @param inputFilename Name of the input file
+         * @param options Options including output file and variable name
+         */
+        public Entry(String inputFilename, ConverterOptions options) {
+            this.inputFilename = inputFilename;
+            this.options = options;
+        }
+
+        public String getInputFilename() {
+            return inputFilename;
+        }
+
+        public ConverterOptions getOptions() {
+            return options;
+        }
+    }
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * The images of this job in job order.
+     */
+    private final List<Entry> entries;
+
+    /**
+     * Number of worker threads.
+     */
+    private final int threads;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates a job for the given images.
+     * @param entries Images with their options
+     * @param threads Number of worker threads
+     */
+    public BatchJob(List<Entry> entries, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Invalid number of threads " + threads);
+        this.entries = List.copyOf(entries);
+        this.threads = threads;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Accessors">
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Reads a job file.
+     * @param jobFile Job file
+     * @param defaults Options used for everything the job file does not specify
+     * @param outdir Output directory if the job file does not specify one (may be null)
+     * @return Batch job
+     * @throws IOException If the job file could not be read
+     * @throws IllegalArgumentException If the job file contains invalid entries
+     */
+    public static BatchJob load(Path jobFile, ConverterOptions defaults, String outdir) throws IOException {
+        var properties = new Properties();
+        try (var reader = Files.newBufferedReader(jobFile)) {
+            properties.load(reader);
+        }
+        var baseDir = jobFile.toAbsolutePath().getParent();
+        if (outdir != null) outdir = Path.of(outdir).toAbsolutePath().toString();
+
+        var defaultOptions = new HashMap<String, String>();
+        var imageOptions = new TreeMap<Integer, Map<String, String>>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (var key : properties.stringPropertyNames()) {
+            var value = properties.getProperty(key);
+            if (key.equals("threads")) {
+                threads = parseInt(key, value);
+            } else if (key.equals("directory")) {
+                outdir = value;
+            } else if (key.startsWith("defaults.")) {
+                defaultOptions.put(key.substring(9), value);
+            } else if (key.startsWith("image.") && key.indexOf('.', 6) > 0) {
+                int separator = key.indexOf('.', 6);
+                int index = parseInt(key, key.substring(6, separator));
+                imageOptions.computeIfAbsent(index, i -> new HashMap<>()).put(key.substring(separator +1), value);
+            } else {
+                throw new IllegalArgumentException("Unknown job option " + key);
+            }
+        }
+
+        var base = applyOptions(defaults.toBuilder(), defaultOptions, baseDir).build();
+        var entries = new ArrayList<Entry>();
+        for (var image : imageOptions.entrySet()) {
+            var values = new HashMap<>(image.getValue());
+            var input = values.remove("input");
+            if (input == null) {
+                throw new IllegalArgumentException("Missing input file for image." + image.getKey());
+            }
+            var inputFilename = resolve(baseDir, input);
+            var builder = applyOptions(base.toBuilder(), values, baseDir);
+            var options = builder.build();
+            if (options.getVariableName().isBlank()) {
+                builder.setVariableName(Converter.getDefaultVariableName(inputFilename));
+            }
+            if (options.getOutputFilename().isBlank()) {
+                builder.setOutputFilename((outdir != null)
+                    ? resolve(baseDir, outdir) + File.separator + Converter.getDefaultOutputFileName(inputFilename, false)
+                    : Converter.getDefaultOutputFileName(inputFilename, true)
+                );
+            }
+            entries.add(new Entry(inputFilename, builder.build()));
+        }
+        return new BatchJob(entries, threads);
+    }
+
+    /**
+     * Converts all images and writes the output files. Output files are only
+     * written when all images have been converted successfully.
+     * @param stats Statistics collector or null; statistics are not thread
+     * safe, so the job runs on a single thread if statistics are collected
+     * @throws IOException If an image could not be read or an output file could not be written
+     */
+    public void run(ConversionStats stats) throws IOException {
+        List<String> sourceCodes;
+        int firstFile = (stats != null) ? stats.getFiles().size() : 0;
+        if (stats != null) {
+            sourceCodes = convertSequentially(stats);
+        } else {
+            var executor = Executors.newFixedThreadPool(threads, runnable -> {
+                var thread = new Thread(runnable, "ImageConverter worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                sourceCodes = convert(executor);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // Group the results by output file, keeping the job order
+        var outputs = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < entries.size(); i++) {
+            var outputFilename = entries.get(i).getOptions().getOutputFilename();
+            outputs.computeIfAbsent(outputFilename, f -> new ArrayList<>()).add(i);
+        }
+        for (var output : outputs.entrySet()) {
+            var path = Path.of(output.getKey()).toAbsolutePath();
+            Files.createDirectories(path.getParent());
+            try (var file = new AtomicOutputFile(path)) {
+                for (int index : output.getValue()) {
+                    var entry = entries.get(index);
+                    if (stats != null) stats.resumeFile(firstFile + index);
+                    Converter.writeSourceCode(sourceCodes.get(index), entry.getOptions(), file.getWriter(), entry.getInputFilename(), stats);
+                }
+                if (stats != null) stats.enter(Stage.WRITE);
+                try {
+                    file.commit();
+                } finally {
+                    if (stats != null) stats.exit();
+                }
+            }
+        }
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Decodes all input files (each only once) and creates the source code of
+     * all entries on the given executor. Each input file is one task, which
+     * decodes the file and converts all entries using it, so a decoded image
+     * is released as soon as all entries using it have been converted and no
+     * more images than threads are held at a time.
+     * @param executor Executor
+     * @return Source code per entry in job order
+     * @throws IOException If an image could not be read
+     */
+    private List<String> convert(ExecutorService executor) throws IOException {
+        var sourceCodes = new String[entries.size()];
+        var tasks = new ArrayList<CompletableFuture<Void>>();
+        for (var indices : groupByInput().values()) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                BufferedImage image;
+                try {
+                    image = decode(entries.get(indices.get(0)).getInputFilename());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                for (int index : indices) {
+                    var entry = entries.get(index);
+                    sourceCodes[index] = new Converter(image, entry.getInputFilename()).createSourceCode(entry.getOptions());
+                }
+            }, executor));
+        }
+
+        try {
+            CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException ex) {
+            var cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException)cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw ex;
+        }
+        return Arrays.asList(sourceCodes);
+    }
+
+    /**
+     * Converts all entries on the current thread, collecting statistics.
+     * Each input file is decoded only once.
+     * @param stats Statistics collector
+     * @return Source code per entry in job order
+     * @throws IOException If an image could not be read
+     */
+    private List<String> convertSequentially(ConversionStats stats) throws IOException {
+        var remainingUses = countUses();
+        var images = new HashMap<String, BufferedImage>();
+        var sourceCodes = new ArrayList<String>(entries.size());
+        for (var entry : entries) {
+            var filename = entry.getInputFilename();
+            var key = getKey(filename);
+            var image = images.get(key);
+            Converter converter;
+            if (image == null) {
+                converter = new Converter();
+                converter.setStats(stats);
+                converter.loadImage(filename);
+                if (converter.getSourceImage() == null) throw new IOException("Unsupported image format: " + filename);
+                images.put(key, converter.getSourceImage());
+            } else {
+                stats.beginFile(filename);
+                stats.addPixels((long)image.getWidth() *image.getHeight());
+                converter = new Converter(image, filename);
+                converter.setStats(stats);
+            }
+            sourceCodes.add(converter.createSourceCode(entry.getOptions()));
+            if (remainingUses.merge(key, -1, Integer::sum) == 0) images.remove(key);
+        }
+        return sourceCodes;
+    }
+
+    /**
+     * Groups the entries by input file.
+     * @return Indices of the entries per input file key, in job order
+     */
+    private Map<String, List<Integer>> groupByInput() {
+        var groups = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < entries.size(); i++) {
+            groups.computeIfAbsent(getKey(entries.get(i).getInputFilename()), k -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    /**
+     * Counts how many entries use each input file.
+     * @return Number of entries per input file key
+     */
+    private Map<String, Integer> countUses() {
+        var uses = new HashMap<String, Integer>();
+        for (var entry : entries) {
+            uses.merge(getKey(entry.getInputFilename()), 1, Integer::sum);
+        }
+        return uses;
+    }
+
+    private static String getKey(String filename) {
+        return Path.of(filename).toAbsolutePath().normalize().toString();
+    }
+
+    private static BufferedImage decode(String filename) throws IOException {
+        var image = Converter.readImage(Converter.readFile(Path.of(filename)));
+        if (image == null) throw new IOException("Unsupported image format: " + filename);
+        return image;
+    }
+
+    /**
+     * Applies the given options to the builder. A preset is applied first,
+     * so other options override it; output file names are resolved against
+     * the job's directory.
+     */
+    private static ConverterOptions.Builder applyOptions(ConverterOptions.Builder builder, Map<String, String> values, Path baseDir) {
+        var preset = values.get("preset");
+        if (preset != null) builder.applyPreset(ConverterOptions.Preset.valueOf(preset));
+        for (var option : values.entrySet()) {
+            switch (option.getKey()) {
+                case "preset" -> {
+                }
+                case ConverterOptions.OUTPUT_FILENAME -> builder.setOutputFilename(
+                    option.getValue().isBlank() ? "" : resolve(baseDir, option.getValue())
+                );
+                default -> builder.set(option.getKey(), option.getValue());
+            }
+        }
+        return builder;
+    }
+
+    private static String resolve(Path baseDir, String filename) {
+        return baseDir.resolve(filename).toString();
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number in job option " + key);
+        }
+    }
+
+    // </editor-fold>
+
+}
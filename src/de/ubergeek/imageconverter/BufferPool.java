@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Per-thread pool of reduced images and output buffers.
+ * Converting many images of the same size reuses the same target image,
+ * source code buffer and write buffer, so the steady state allocates almost
+ * nothing per image. Only buffers and images of typical sprite and screen
+ * sizes are kept, as the pool lives as long as its thread (including
+ * threads of servers using the ConversionService). Pooled objects must not
+ * be used after they have been released and must never leave the converter.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class BufferPool {
+
+    /**
+     * Number of images kept per thread.
+     */
+    private final static int IMAGE_SLOTS = 4;
+
+    /**
+     * Buffers and images larger than this (in bytes) are not kept after use.
+     */
+    private final static int MAX_RETAINED_BYTES = 256 << 10;
+
+    /**
+     * Size of the character buffer used to write source code.
+     */
+    private final static int CHAR_BUFFER_SIZE = 1 << 14;
+
+    private final static ThreadLocal<BufferPool> POOL = ThreadLocal.withInitial(BufferPool::new);
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * Released images; the least recently released image is replaced first.
+     */
+    private final BufferedImage[] images = new BufferedImage[IMAGE_SLOTS];
+
+    /**
+     * Release counter per slot, used to find the least recently used slot.
+     */
+    private final long[] releasedAt = new long[IMAGE_SLOTS];
+    private long releaseCounter = 0;
+
+    /**
+     * Source code buffer or null if it is in use.
+     */
+    private StringBuilder builder = new StringBuilder();
+
+    /**
+     * Character buffer for writing source code.
+     */
+    private final char[] charBuffer = new char[CHAR_BUFFER_SIZE];
+
+    /**
+     * Buffer for a single row of pixels.
+     */
+    private int[] rowBuffer = new int[0];
+
+    /**
+     * Buffer for packed image data.
+     */
+    private byte[] byteBuffer = new byte[0];
+
+    /**
+     * Last background table and the color it has been created for.
+     */
+    private int[] backgroundTable;
+    private int backgroundTableColor;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    private BufferPool() {
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Returns the pool of the current thread.
+     * @return Buffer pool
+     */
+    static BufferPool get() {
+        return POOL.get();
+    }
+
+    /**
+     * Returns an image of the given size and type with all pixels set to 0.
+     * The image should be handed back with releaseImage() when it is no
+     * longer needed.
+     * @param width Image width
+     * @param height Image height
+     * @param type Image type (TYPE_BYTE_BINARY, TYPE_USHORT_565_RGB or TYPE_INT_RGB)
+     * @return Cleared image
+     */
+    BufferedImage acquireImage(int width, int height, int type) {
+        for (int i = 0; i < IMAGE_SLOTS; i++) {
+            var image = images[i];
+            if (image != null && image.getWidth() == width && image.getHeight() == height && image.getType() == type) {
+                images[i] = null;
+                clear(image);
+                return image;
+            }
+        }
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Hands an image back to the pool. Very large images are not kept.
+     * @param image Image acquired by acquireImage()
+     */
+    void releaseImage(BufferedImage image) {
+        var buffer = image.getRaster().getDataBuffer();
+        if ((long)buffer.getSize() *DataBuffer.getDataTypeSize(buffer.getDataType()) /8 > MAX_RETAINED_BYTES) return;
+        int slot = 0;
+        for (int i = 0; i < IMAGE_SLOTS; i++) {
+            if (images[i] == null) {
+                slot = i;
+                break;
+            }
+            if (releasedAt[i] < releasedAt[slot]) slot = i;
+        }
+        images[slot] = image;
+        releasedAt[slot] = ++releaseCounter;
+    }
+
+    /**
+     * Returns an empty source code buffer with at least the given capacity.
+     * The buffer should be handed back with releaseBuilder().
+     * @param capacity Expected size of the source code
+     * @return Empty StringBuilder
+     */
+    StringBuilder acquireBuilder(int capacity) {
+        var sb = builder;
+        builder = null;
+        if (sb == null) {
+            // Nested use: the pooled buffer is already taken
+            return new StringBuilder(capacity);
+        }
+        sb.setLength(0);
+        sb.ensureCapacity(capacity);
+        return sb;
+    }
+
+    /**
+     * Hands a source code buffer back to the pool. Very large buffers are
+     * not kept.
+     * @param sb Buffer acquired by acquireBuilder()
+     */
+    void releaseBuilder(StringBuilder sb) {
+        if ((long)sb.capacity() *2 <= MAX_RETAINED_BYTES) {
+            sb.setLength(0);
+            builder = sb;
+        }
+    }
+
+    /**
+     * Returns a character buffer for copying source code into writers.
+     * @return Character buffer
+     */
+    char[] getCharBuffer() {
+        return charBuffer;
+    }
+
+    /**
+     * Returns a buffer for one row of pixels with exactly the given length.
+     * The content is undefined.
+     * @param length Number of pixels
+     * @return Row buffer
+     */
+    int[] getRowBuffer(int length) {
+        if (rowBuffer.length != length) rowBuffer = new int[length];
+        return rowBuffer;
+    }
+
+    /**
+     * Returns a buffer for packed image data with at least the given length.
+     * The content is undefined. Very large buffers are not kept.
+     * @param length Minimum number of bytes
+     * @return Byte buffer
+     */
+    byte[] getByteBuffer(int length) {
+        if (byteBuffer.length >= length) return byteBuffer;
+        var buffer = new byte[length];
+        if (length <= MAX_RETAINED_BYTES) byteBuffer = buffer;
+        return buffer;
+    }
+
+    /**
+     * Returns the background table for the given color, creating it only if
+     * the color differs from the previous call.
+     * @param color Background color
+     * @param factory Creates the table for a color
+     * @return Background table
+     */
+    int[] getBackgroundTable(int color, IntFunction<int[]> factory) {
+        if (backgroundTable == null || backgroundTableColor != color) {
+            backgroundTable = factory.apply(color);
+            backgroundTableColor = color;
+        }
+        return backgroundTable;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    private static void clear(BufferedImage image) {
+        var buffer = image.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferByte) {
+            Arrays.fill(((DataBufferByte)buffer).getData(), (byte)0);
+        } else if (buffer instanceof DataBufferUShort) {
+            Arrays.fill(((DataBufferUShort)buffer).getData(), (short)0);
+        } else if (buffer instanceof DataBufferInt) {
+            Arrays.fill(((DataBufferInt)buffer).getData(), 0);
+        } else {
+            throw new IllegalArgumentException("Unsupported image type " + image.getType());
+        }
+    }
+
+    // </editor-fold>
+
+}
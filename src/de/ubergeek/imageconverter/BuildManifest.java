@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Build manifest for incremental conversion.
+ * The manifest is stored next to the output file and records the input files,
+ * their hashes and the options used for every segment of the generated
+ * source file, so unchanged segments can be reused in the next run.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public class BuildManifest {
+
+    /**
+     * File extension that is appended to the output file name.
+     */
+    public final static String FILE_EXTENSION = ".manifest";
+
+    /**
+     * Version of the manifest format. Manifests of other versions are ignored.
+     */
+    private final static String FORMAT_VERSION = "2";
+
+    /**
+     * A single segment of the output file, generated from one input file.
+     */
+    public static class Segment {
+
+        private final String inputFilename;
+        private final String inputHash;
+        private final String optionsFingerprint;
+        private final int offset;
+        private final int length;
+
+        /**
+         * Creates a new segment description.
+         * @param inputFilename Absolute name of the input file
+         * @param inputHash Hash of the input file's content
+         * @param optionsFingerprint Fingerprint of the options used for this segment
+         * @param offset Offset of the segment in the output file (in characters)
+         * @param length Length of the segment in the output file (in characters)
+         */
+        public Segment(String inputFilename, String inputHash, String optionsFingerprint, int offset, int length) {
+            this.inputFilename = inputFilename;
+            this.inputHash = inputHash;
+            this.optionsFingerprint = optionsFingerprint;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getInputFilename() {
+            return inputFilename;
+        }
+
+        public String getInputHash() {
+            return inputHash;
+        }
+
+        public String getOptionsFingerprint() {
+            return optionsFingerprint;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns true if the given segment was created from the same input
+         * with the same options. Offset and length are not compared.
+         * @param other Segment to compare with
+         * @return true if both segments would produce the same source code
+         */
+        public boolean matches(Segment other) {
+            return other != null
+                && inputFilename.equals(other.inputFilename)
+                && inputHash.equals(other.inputHash)
+                && optionsFingerprint.equals(other.optionsFingerprint);
+        }
+    }
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * The output file this manifest belongs to.
+     */
+    private final Path outputFile;
+
+    /**
+     * Hash of the output file at the time the manifest has been written.
+     */
+    private String outputHash;
+
+    /**
+     * Segments of the output file in order of appearance.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates an empty manifest for the given output file.
+     * @param outputFile Output file the manifest belongs to
+     */
+    public BuildManifest(Path outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Accessors">
+
+    public Path getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Returns the name of the file the manifest is stored in.
+     * @return Manifest file
+     */
+    public Path getManifestFile() {
+        return Path.of(outputFile.toString() + FILE_EXTENSION);
+    }
+
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Loads the manifest for the given output file. If no manifest exists or
+     * it cannot be used an empty manifest will be returned.
+     * @param outputFile Output file
+     * @return Manifest for the given output file
+     * @throws IOException If an existing manifest could not be read
+     */
+    public static BuildManifest load(Path outputFile) throws IOException {
+        var manifest = new BuildManifest(outputFile);
+        var manifestFile = manifest.getManifestFile();
+        if (!Files.exists(manifestFile)) return manifest;
+
+        var properties = new Properties();
+        try (var reader = Files.newBufferedReader(manifestFile)) {
+            properties.load(reader);
+        }
+
+        if (!FORMAT_VERSION.equals(properties.getProperty("format"))
+                || !getApplicationVersion().equals(properties.getProperty("version"))) {
+            return manifest;
+        }
+
+        try {
+            manifest.outputHash = properties.getProperty("output.hash");
+            int count = Integer.parseInt(properties.getProperty("segments", "0"));
+            for (int i = 0; i < count; i++) {
+                var prefix = "segment." + i + ".";
+                manifest.segments.add(new Segment(
+                    Objects.requireNonNull(properties.getProperty(prefix + "input")),
+                    Objects.requireNonNull(properties.getProperty(prefix + "hash")),
+                    Objects.requireNonNull(properties.getProperty(prefix + "options")),
+                    Integer.parseInt(properties.getProperty(prefix + "offset")),
+                    Integer.parseInt(properties.getProperty(prefix + "length"))
+                ));
+            }
+        } catch (NumberFormatException | NullPointerException ex) {
+            // Damaged manifest: start over
+            return new BuildManifest(outputFile);
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest next to the output file.
+     * @throws IOException If the manifest could not be written
+     */
+    public void save() throws IOException {
+        var properties = new Properties();
+        properties.setProperty("format", FORMAT_VERSION);
+        properties.setProperty("version", getApplicationVersion());
+        if (outputHash != null) properties.setProperty("output.hash", outputHash);
+        properties.setProperty("segments", Integer.toString(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            var segment = segments.get(i);
+            var prefix = "segment." + i + ".";
+            properties.setProperty(prefix + "input", segment.inputFilename);
+            properties.setProperty(prefix + "hash", segment.inputHash);
+            properties.setProperty(prefix + "options", segment.optionsFingerprint);
+            properties.setProperty(prefix + "offset", Integer.toString(segment.offset));
+            properties.setProperty(prefix + "length", Integer.toString(segment.length));
+        }
+
+        try (var file = new AtomicOutputFile(getManifestFile())) {
+            properties.store(file.getWriter(), "ImageConverter build manifest");
+            file.commit();
+        }
+    }
+
+    /**
+     * Replaces the recorded segments and output hash after the output file
+     * has been written.
+     * @param newSegments Segments of the new output file
+     * @param outputContent Content of the new output file
+     */
+    public void update(List<Segment> newSegments, String outputContent) {
+        segments.clear();
+        segments.addAll(newSegments);
+        outputHash = hashString(outputContent);
+    }
+
+    /**
+     * Checks if the output file still has the content recorded in this
+     * manifest, i.e. it exists and has not been modified by someone else.
+     * @return true if recorded segments can be taken from the output file
+     * @throws IOException If the output file could not be read
+     */
+    public boolean isOutputValid() throws IOException {
+        return outputHash != null
+            && Files.exists(outputFile)
+            && outputHash.equals(hashFile(outputFile));
+    }
+
+    /**
+     * Checks if the output file would be generated from exactly the given
+     * segments, in the same order.
+     * @param expectedSegments Segments that would be generated in this run
+     * @return true if the output file does not need to be rewritten
+     * @throws IOException If the output file could not be read
+     */
+    public boolean isUpToDate(List<Segment> expectedSegments) throws IOException {
+        if (expectedSegments.size() != segments.size()) return false;
+        for (int i = 0; i < segments.size(); i++) {
+            if (!segments.get(i).matches(expectedSegments.get(i))) return false;
+        }
+        return isOutputValid();
+    }
+
+    /**
+     * Searches for a previously generated segment that matches the given one.
+     * @param segment Segment to search for
+     * @return Matching segment including its position in the output file or
+     * null if no matching segment was recorded
+     */
+    public Segment findSegment(Segment segment) {
+        for (var recorded : segments) {
+            if (recorded.matches(segment)) return recorded;
+        }
+        return null;
+    }
+
+    /**
+     * Creates a fingerprint of all options that affect the generated source
+     * code, i.e. the canonical form of the options without the output file.
+     * @param options Converter options
+     * @return Options fingerprint
+     */
+    public static String createOptionsFingerprint(ConverterOptions options) {
+        return options.toBuilder().setOutputFilename("").build().toString();
+    }
+
+    /**
+     * Calculates the hash of the given file's content.
+     * @param file File to be hashed
+     * @return Hex encoded SHA-256 hash
+     * @throws IOException If the file could not be read
+     */
+    public static String hashFile(Path file) throws IOException {
+        var digest = createDigest();
+        var buffer = new byte[65536];
+        try (InputStream in = Files.newInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Calculates the hash of the given string's UTF-8 representation.
+     * @param content String to be hashed
+     * @return Hex encoded SHA-256 hash
+     */
+    public static String hashString(String content) {
+        return toHex(createDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        var sb = new StringBuilder(bytes.length *2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the application version. Manifests written by other versions
+     * are not reused because the generated code may differ.
+     * @return Application version
+     */
+    private static String getApplicationVersion() {
+        var properties = new Properties();
+        try (InputStream in = BuildManifest.class.getResourceAsStream("/version.properties")) {
+            if (in != null) properties.load(in);
+        } catch (IOException ex) {
+            // Fall through to the default
+        }
+        return properties.getProperty("Version.Number", "") + "." + properties.getProperty("Version.Patch", "");
+    }
+
+    // </editor-fold>
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import de.ubergeek.imageconverter.Converter.ByteOrder;
+import de.ubergeek.imageconverter.Converter.Mode;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Quantization and packing of the color modes besides RGB565 (RGB332,
+ * RGB444, RGB888 and the grayscale modes).
+ * Images of these modes are reduced to TYPE_INT_RGB and then quantized in
+ * place: every channel is reduced to the bit depth of the mode and expanded
+ * back to 8 bits, so the reduced image shows the colors the device will
+ * show. Packing reads the levels from the quantized image again; both steps
+ * use lookup tables per bit depth and work row by row without allocations.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class ColorFormats {
+
+    /**
+     * Level of every 8 bit value, by bit depth (1 to 8 bits).
+     */
+    private final static int[][] LEVELS = new int[9][];
+
+    /**
+     * Every 8 bit value quantized to the bit depth and expanded back to 8
+     * bits (the value of its level).
+     */
+    private final static int[][] STEPS = new int[9][];
+
+    static {
+        for (int bits = 1; bits <= 8; bits++) {
+            int max = (1 << bits) -1;
+            var levels = new int[256];
+            var steps = new int[256];
+            for (int v = 0; v < 256; v++) {
+                int level = (v *max + 127) /255;
+                levels[v] = level;
+                steps[v] = (level *255 + max /2) /max;
+            }
+            LEVELS[bits] = levels;
+            STEPS[bits] = steps;
+        }
+    }
+
+    private ColorFormats() {
+    }
+
+    /**
+     * Returns the number of pixels packed into a group of whole bytes. The
+     * width of reduced images is padded to a multiple of it, so every row
+     * starts at a byte boundary.
+     * @param mode Conversion mode
+     * @return Pixels per group (1 for modes with whole bytes per pixel)
+     */
+    static int getHorizontalAlignment(Mode mode) {
+        return switch (mode) {
+            case MONOH -> 8;
+            case GRAY2 -> 4;
+            case GRAY4, RGB444 -> 2;
+            default -> 1;
+        };
+    }
+
+    /**
+     * Returns the number of packed bytes of one row of a color mode.
+     * @param mode Color mode
+     * @param width Image width
+     * @return Bytes per row (without padding to the row alignment)
+     */
+    static int getRowBytes(Mode mode, int width) {
+        return switch (mode) {
+            case RGB565 -> width *2;
+            case RGB332 -> width;
+            case RGB444 -> (width *3 +1) /2;
+            case RGB888 -> width *3;
+            case GRAY4 -> (width +1) /2;
+            case GRAY2 -> (width +3) /4;
+            default -> throw new IllegalArgumentException("Not a color mode: " + mode);
+        };
+    }
+
+    /**
+     * Quantizes a reduced image of type TYPE_INT_RGB in place to the colors
+     * of the given mode.
+     * @param image Reduced image
+     * @param mode Conversion mode (RGB332, RGB444, RGB888, GRAY4 or GRAY2)
+     */
+    static void quantize(BufferedImage image, Mode mode) {
+        var data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        switch (mode) {
+            case RGB332 -> quantizeRgb(data, STEPS[3], STEPS[3], STEPS[2]);
+            case RGB444 -> quantizeRgb(data, STEPS[4], STEPS[4], STEPS[4]);
+            case GRAY4 -> quantizeGray(data, STEPS[4]);
+            case GRAY2 -> quantizeGray(data, STEPS[2]);
+            default -> {
+                // RGB888 keeps all bits
+            }
+        }
+    }
+
+    /**
+     * Packs one row of a quantized image.
+     * RGB332 uses one byte per pixel (rrrgggbb), RGB444 three bytes per two
+     * pixels (rrrrgggg bbbbrrrr ggggbbbb), RGB888 three bytes per pixel (in
+     * the given byte order), the grayscale modes two or four pixels per byte
+     * with the leftmost pixel in the most significant bits.
+     * @param data Pixels of the quantized image (RGB)
+     * @param offset Index of the first pixel of the row
+     * @param width Number of pixels
+     * @param mode Conversion mode (RGB332, RGB444, RGB888, GRAY4 or GRAY2)
+     * @param byteOrder Byte order (RGB888 only)
+     * @param result Array receiving getRowBytes() bytes
+     * @param out Index of the first byte of the row
+     */
+    static void packRow(int[] data, int offset, int width, Mode mode, ByteOrder byteOrder, byte[] result, int out) {
+        switch (mode) {
+            case RGB332 -> {
+                var rg = LEVELS[3];
+                var b = LEVELS[2];
+                for (int x = 0; x < width; x++) {
+                    int rgb = data[offset + x];
+                    result[out + x] = (byte)((rg[(rgb >> 16) & 0xFF] << 5) | (rg[(rgb >> 8) & 0xFF] << 2) | b[rgb & 0xFF]);
+                }
+            }
+
+            case RGB444 -> {
+                for (int x = 0; x < width; x += 2) {
+                    int first = pack444(data[offset + x]);
+                    int second = (x +1 < width) ? pack444(data[offset + x +1]) : 0;
+                    result[out++] = (byte)(first >> 4);
+                    result[out++] = (byte)((first << 4) | (second >> 8));
+                    if (x +1 < width) result[out++] = (byte)second;
+                }
+            }
+
+            case RGB888 -> {
+                int first = (byteOrder == ByteOrder.BIG) ? 16 : 0;
+                for (int x = 0; x < width; x++, out += 3) {
+                    int rgb = data[offset + x];
+                    result[out] = (byte)(rgb >> first);
+                    result[out +1] = (byte)(rgb >> 8);
+                    result[out +2] = (byte)(rgb >> (16 - first));
+                }
+            }
+
+            case GRAY4 -> packGray(data, offset, width, LEVELS[4], 4, result, out);
+
+            case GRAY2 -> packGray(data, offset, width, LEVELS[2], 2, result, out);
+
+            default -> throw new IllegalArgumentException("Not a packed color mode: " + mode);
+        }
+    }
+
+    // <editor-fold desc="Internal methods">
+
+    private static void quantizeRgb(int[] data, int[] red, int[] green, int[] blue) {
+        for (int i = 0; i < data.length; i++) {
+            int rgb = data[i];
+            data[i] = (red[(rgb >> 16) & 0xFF] << 16) | (green[(rgb >> 8) & 0xFF] << 8) | blue[rgb & 0xFF];
+        }
+    }
+
+    /**
+     * Replaces every pixel by its luma (ITU-R BT.601 weights in steps of
+     * 1/256) quantized to the given steps.
+     */
+    private static void quantizeGray(int[] data, int[] steps) {
+        for (int i = 0; i < data.length; i++) {
+            int rgb = data[i];
+            int luma = (77 *((rgb >> 16) & 0xFF) + 150 *((rgb >> 8) & 0xFF) + 29 *(rgb & 0xFF) + 128) >> 8;
+            data[i] = steps[luma] *0x010101;
+        }
+    }
+
+    private static int pack444(int rgb) {
+        var levels = LEVELS[4];
+        return (levels[(rgb >> 16) & 0xFF] << 8) | (levels[(rgb >> 8) & 0xFF] << 4) | levels[rgb & 0xFF];
+    }
+
+    /**
+     * Packs the gray levels of one row, leftmost pixel first. A partial byte
+     * at the end of the row is padded with zero bits.
+     */
+    private static void packGray(int[] data, int offset, int width, int[] levels, int bits, byte[] result, int out) {
+        int pixelsPerByte = 8 /bits;
+        int value = 0;
+        for (int x = 0; x < width; x++) {
+            value = (value << bits) | levels[data[offset + x] & 0xFF];
+            if ((x +1) % pixelsPerByte == 0) {
+                result[out++] = (byte)value;
+                value = 0;
+            }
+        }
+        int remaining = width % pixelsPerByte;
+        if (remaining != 0) {
+            result[out] = (byte)(value << (bits *(pixelsPerByte - remaining)));
+        }
+    }
+
+    // </editor-fold>
+
+}
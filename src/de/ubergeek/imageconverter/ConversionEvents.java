@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by the conversion stages.
+ * Events are only committed while a recording with these events enabled is
+ * running; otherwise creating and ending them is optimized away by the JIT.
+ * Usage: java -XX:StartFlightRecording:filename=conversion.jfr -jar ImageConverter.jar ...
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public final class ConversionEvents {
+
+    private ConversionEvents() {
+    }
+
+    /**
+     * Common fields of all conversion events.
+     */
+    @Category("ImageConverter")
+    @StackTrace(false)
+    abstract static class ConversionEvent extends Event {
+
+        @Label("File")
+        @Description("Name of the input file")
+        String filename;
+
+        @Label("Width")
+        @Description("Width of the image in pixels")
+        int width;
+
+        @Label("Height")
+        @Description("Height of the image in pixels")
+        int height;
+
+        @Label("Mode")
+        @Description("Conversion mode")
+        String mode;
+    }
+
+    /**
+     * Reading and decoding of an image file.
+     */
+    @Name("de.ubergeek.imageconverter.Decode")
+    @Label("Decode Image")
+    static class DecodeEvent extends ConversionEvent {
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+    }
+
+    /**
+     * Color reduction of the source image.
+     */
+    @Name("de.ubergeek.imageconverter.Reduce")
+    @Label("Reduce Colors")
+    static class ReduceEvent extends ConversionEvent {
+
+        @Label("Fast Path")
+        @Description("True if the image was reduced without Java2D")
+        boolean fastPath;
+    }
+
+    /**
+     * Creation of source code by one of the encoders.
+     */
+    @Name("de.ubergeek.imageconverter.Encode")
+    @Label("Encode Image")
+    static class EncodeEvent extends ConversionEvent {
+
+        @Label("Encoder")
+        String encoder;
+
+        @Label("Output Size")
+        @Description("Number of characters created")
+        @DataAmount
+        long outputSize;
+    }
+
+    /**
+     * Writing of generated source code.
+     */
+    @Name("de.ubergeek.imageconverter.Write")
+    @Label("Write Output")
+    static class WriteEvent extends ConversionEvent {
+
+        @Label("Output File")
+        String outputFilename;
+
+        @Label("Output Size")
+        @Description("Number of characters written")
+        @DataAmount
+        long outputSize;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Converts a list of input files in three stages: reading the files (on a
+ * small pool of I/O threads), decoding and creating the source code (on one
+ * thread per processor) and writing the results (on the calling thread, in
+ * the order of the input files).
+ * The stages are joined by a bounded queue: when the writer falls behind,
+ * no further files are read, so memory use does not depend on the number of
+ * input files, while reading and writing overlap with the conversion of
+ * other files.
+ * Decoding belongs to the conversion stage rather than to reading: the I/O
+ * stage only loads (or maps) the file contents, which mostly waits for the
+ * disk, while decoding (inflating and unfiltering the pixel data) is as CPU
+ * bound as the conversion itself. On the small I/O pool it would limit
+ * decoding to IO_THREADS files at a time and hold up further reads; on the
+ * conversion pool it scales with the processors, and a decoded image never
+ * waits in the queue, so only the much smaller file contents are buffered.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class ConversionPipeline {
+
+    /**
+     * Receives the source code of each input file, in input order.
+     */
+    @FunctionalInterface
+    interface Sink {
+        void write(String filename, String sourceCode) throws IOException;
+    }
+
+    /**
+     * Number of threads reading input files.
+     */
+    private final static int IO_THREADS = 4;
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * Number of threads converting images.
+     */
+    private final int threads;
+
+    /**
+     * Maximum number of files between reading and writing.
+     */
+    private final int capacity;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates a pipeline.
+     * @param threads Number of threads converting images
+     * @param capacity Maximum number of files read but not yet written
+     */
+    ConversionPipeline(int threads, int capacity) {
+        if (threads < 1 || capacity < 1) throw new IllegalArgumentException("Invalid pipeline size");
+        this.threads = threads;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a pipeline with one conversion thread per processor.
+     */
+    ConversionPipeline() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() *2 + IO_THREADS);
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Converts the given files and hands the results to the sink.
+     * @param filenames Input files
+     * @param optionsForFile Determines the options for an input file
+     * @param sink Receives the source code per input file
+     * @throws IOException If a file could not be read or the sink failed
+     */
+    void run(List<String> filenames, Function<String, ConverterOptions> optionsForFile, Sink sink) throws IOException {
+        var io = createExecutor(IO_THREADS, "ImageConverter reader");
+        var cpu = createExecutor(threads, "ImageConverter worker");
+        var queue = new ArrayBlockingQueue<CompletableFuture<String>>(capacity);
+        var producer = new Thread(() -> produce(filenames, optionsForFile, queue, io, cpu), "ImageConverter producer");
+        producer.setDaemon(true);
+        producer.start();
+        try {
+            for (var filename : filenames) {
+                sink.write(filename, queue.take().join());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Conversion interrupted", ex);
+        } catch (CompletionException ex) {
+            var cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException)cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw ex;
+        } finally {
+            producer.interrupt();
+            io.shutdownNow();
+            cpu.shutdownNow();
+        }
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Starts reading and converting the files, blocking while the queue is
+     * full.
+     */
+    private static void produce(List<String> filenames, Function<String, ConverterOptions> optionsForFile,
+            BlockingQueue<CompletableFuture<String>> queue, ExecutorService io, ExecutorService cpu) {
+        try {
+            for (var filename : filenames) {
+                var result = CompletableFuture
+                    .supplyAsync(() -> read(filename), io)
+                    .thenApplyAsync(data -> convert(filename, data, optionsForFile.apply(filename)), cpu);
+                queue.put(result);
+            }
+        } catch (InterruptedException ex) {
+            // The pipeline has been stopped
+        }
+    }
+
+    private static ByteBuffer read(String filename) {
+        try {
+            return Converter.readFile(Path.of(filename));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static String convert(String filename, ByteBuffer data, ConverterOptions options) {
+        var converter = new Converter();
+        try {
+            converter.loadImage(data, filename);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (!converter.isImageLoaded()) {
+            throw new UncheckedIOException(new IOException("Unsupported image format: " + filename));
+        }
+        return converter.createSourceCode(options);
+    }
+
+    private static ExecutorService createExecutor(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // </editor-fold>
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import javax.imageio.ImageIO;
+
+/**
+ * Stateless conversion API for embedding the converter into other tools
+ * (build plugins, servers etc.) without files or a user interface.
+ * A ConversionService has no mutable state and options are immutable, so one
+ * instance can be shared by any number of threads.
+ * If no variable name is set in the options, "image" is used.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public final class ConversionService {
+
+    /**
+     * Variable name used if the options don't specify one.
+     */
+    public final static String DEFAULT_VARIABLE_NAME = "image";
+
+    /**
+     * Size of the character buffer used when writing into channels.
+     */
+    private final static int BUFFER_SIZE = 1 << 16;
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates a conversion service.
+     */
+    public ConversionService() {
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Decodes an image from the given stream. The stream is not closed.
+     * @param in Stream containing an image file (PNG, GIF, JPEG, BMP)
+     * @return Decoded image
+     * @throws IOException If the image could not be read or has an unknown format
+     */
+    public BufferedImage decode(InputStream in) throws IOException {
+        var image = ImageIO.read(in);
+        if (image == null) throw new IOException("Unsupported image format");
+        return image;
+    }
+
+    /**
+     * Decodes an image from the remaining bytes of the given buffer. The
+     * position of the buffer is not changed.
+     * @param buffer Buffer containing an image file (PNG, GIF, JPEG, BMP)
+     * @return Decoded image
+     * @throws IOException If the image could not be read or has an unknown format
+     */
+    public BufferedImage decode(ByteBuffer buffer) throws IOException {
+        var image = Converter.readImage(buffer);
+        if (image == null) throw new IOException("Unsupported image format");
+        return image;
+    }
+
+    /**
+     * Creates the complete source code (ascii art, variable declaration and
+     * image data) for the given image.
+     * @param image Source image
+     * @param options Converter options
+     * @return Generated source code
+     */
+    public String createSourceCode(BufferedImage image, ConverterOptions options) {
+        return new Converter(image, null).createSourceCode(withVariableName(options));
+    }
+
+    /**
+     * Decodes an image from the given stream and creates its source code.
+     * @param in Stream containing an image file
+     * @param options Converter options
+     * @return Generated source code
+     * @throws IOException If the image could not be read
+     */
+    public String createSourceCode(InputStream in, ConverterOptions options) throws IOException {
+        return createSourceCode(decode(in), options);
+    }
+
+    /**
+     * Decodes an image from the given buffer and creates its source code.
+     * @param buffer Buffer containing an image file
+     * @param options Converter options
+     * @return Generated source code
+     * @throws IOException If the image could not be read
+     */
+    public String createSourceCode(ByteBuffer buffer, ConverterOptions options) throws IOException {
+        return createSourceCode(decode(buffer), options);
+    }
+
+    /**
+     * Creates the source code for the given image and appends it to the
+     * given Appendable (e.g. a Writer or StringBuilder).
+     * @param image Source image
+     * @param options Converter options
+     * @param out Appendable the source code is appended to
+     * @throws IOException If the source code could not be appended
+     */
+    public void writeSourceCode(BufferedImage image, ConverterOptions options, Appendable out) throws IOException {
+        new Converter(image, null).appendSourceCode(withVariableName(options), out);
+    }
+
+    /**
+     * Creates the source code for the given image and writes it UTF-8
+     * encoded into the given channel. The channel is not closed.
+     * @param image Source image
+     * @param options Converter options
+     * @param channel Channel the source code is written to
+     * @throws IOException If the source code could not be written
+     */
+    public void writeSourceCode(BufferedImage image, ConverterOptions options, WritableByteChannel channel) throws IOException {
+        var writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE);
+        new Converter(image, null).writeSourceCode(withVariableName(options), writer);
+        writer.flush();
+    }
+
+    /**
+     * Creates the image data of the given image in binary form, i.e. the
+     * bytes the generated array would contain (without dimensions).
+     * @param image Source image
+     * @param options Converter options
+     * @return Packed image data
+     */
+    public byte[] createPackedData(BufferedImage image, ConverterOptions options) {
+        return new Converter(image, null).createPackedData(options);
+    }
+
+    /**
+     * Decodes an image from the given stream and creates its packed data.
+     * @param in Stream containing an image file
+     * @param options Converter options
+     * @return Packed image data
+     * @throws IOException If the image could not be read
+     */
+    public byte[] createPackedData(InputStream in, ConverterOptions options) throws IOException {
+        return createPackedData(decode(in), options);
+    }
+
+    /**
+     * Decodes an image from the given buffer and creates its packed data.
+     * @param buffer Buffer containing an image file
+     * @param options Converter options
+     * @return Packed image data
+     * @throws IOException If the image could not be read
+     */
+    public byte[] createPackedData(ByteBuffer buffer, ConverterOptions options) throws IOException {
+        return createPackedData(decode(buffer), options);
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Returns the given options with the default variable name if they don't
+     * specify one.
+     * @param options Converter options
+     * @return Options to be used
+     */
+    private static ConverterOptions withVariableName(ConverterOptions options) {
+        if (options.getVariableName().isBlank()) {
+            return options.toBuilder().setVariableName(DEFAULT_VARIABLE_NAME).build();
+        }
+        return options;
+    }
+
+    // </editor-fold>
+
+}
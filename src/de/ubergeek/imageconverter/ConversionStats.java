@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects timings, byte counts and allocations of the conversion stages.
+ * Stages may be nested (e.g. the encoder triggers the color reduction); the
+ * time and memory spent in a nested stage is only accounted to that stage.
+ * Instances are not thread-safe and should be used by one converter only.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public class ConversionStats {
+
+    /**
+     * Stages of the conversion pipeline.
+     */
+    public enum Stage {
+        /** Reading and decoding the image file */
+        DECODE,
+
+        /** Scaling the source image */
+        RESIZE,
+
+        /** Color reduction */
+        REDUCE,
+
+        /** Color inversion (if not done while reducing) */
+        INVERT,
+
+        /** Creating the ascii representation */
+        ASCII,
+
+        /** Creating the image data source code */
+        ENCODE,
+
+        /** Writing the output file */
+        WRITE
+    };
+
+    /**
+     * Statistics of a single converted file.
+     */
+    public static class FileStats {
+
+        private final String filename;
+        private long pixels;
+        private long dataBytes;
+        private long outputBytes;
+        private final long[] nanos = new long[Stage.values().length];
+        private final long[] allocatedBytes = new long[Stage.values().length];
+
+        private FileStats(String filename) {
+            this.filename = filename;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * Returns the number of pixels of the source image.
+         * @return Number of pixels
+         */
+        public long getPixels() {
+            return pixels;
+        }
+
+        /**
+         * Returns the number of bytes of the generated image data.
+         * @return Number of image data bytes
+         */
+        public long getDataBytes() {
+            return dataBytes;
+        }
+
+        /**
+         * Returns the size of the generated source code.
+         * @return Number of characters written
+         */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        /**
+         * Returns the time spent in the given stage.
+         * @param stage Conversion stage
+         * @return Time in nanoseconds
+         */
+        public long getNanos(Stage stage) {
+            return nanos[stage.ordinal()];
+        }
+
+        /**
+         * Returns the memory allocated in the given stage.
+         * @param stage Conversion stage
+         * @return Allocated bytes or 0 if not supported by the JVM
+         */
+        public long getAllocatedBytes(Stage stage) {
+            return allocatedBytes[stage.ordinal()];
+        }
+
+        /**
+         * Returns the time spent in all stages.
+         * @return Time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return Arrays.stream(nanos).sum();
+        }
+    }
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * Statistics of all files in order of conversion.
+     */
+    private final List<FileStats> files = new ArrayList<>();
+
+    /**
+     * Statistics of the file currently converted.
+     */
+    private FileStats current;
+
+    /**
+     * Stack of active stages.
+     */
+    private final Stage[] stageStack = new Stage[16];
+
+    /**
+     * Number of active stages.
+     */
+    private int depth = 0;
+
+    /**
+     * Time and allocation counter when the topmost stage was (re)entered.
+     */
+    private long resumedAt;
+    private long resumedAllocated;
+
+    /**
+     * Start of the first conversion.
+     */
+    private long startedAt = -1;
+
+    /**
+     * End of the last conversion.
+     */
+    private long finishedAt;
+
+    /**
+     * Thread MX bean used to measure allocations or null if not supported.
+     */
+    private final com.sun.management.ThreadMXBean allocationCounter;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates an empty statistics instance.
+     */
+    public ConversionStats() {
+        com.sun.management.ThreadMXBean counter = null;
+        var bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            counter = (com.sun.management.ThreadMXBean)bean;
+            if (!counter.isThreadAllocatedMemorySupported()) {
+                counter = null;
+            } else if (!counter.isThreadAllocatedMemoryEnabled()) {
+                counter.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+        allocationCounter = counter;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Accessors">
+
+    public List<FileStats> getFiles() {
+        return files;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Starts collecting statistics for a new file.
+     * @param filename Name of the input file
+     */
+    public void beginFile(String filename) {
+        current = new FileStats(filename);
+        files.add(current);
+        if (startedAt < 0) startedAt = System.nanoTime();
+    }
+
+    /**
+     * Continues collecting statistics for a file started before, e.g. to
+     * record writing its output after all files have been converted.
+     * @param index Index of the file (in the order of beginFile() calls)
+     */
+    public void resumeFile(int index) {
+        current = files.get(index);
+    }
+
+    /**
+     * Enters a conversion stage. Every call must be followed by a call of
+     * exit().
+     * @param stage Conversion stage
+     */
+    public void enter(Stage stage) {
+        if (current == null) beginFile("");
+        account();
+        stageStack[depth++] = stage;
+    }
+
+    /**
+     * Leaves the current conversion stage.
+     */
+    public void exit() {
+        account();
+        depth--;
+        finishedAt = resumedAt;
+    }
+
+    /**
+     * Records the number of pixels of the current source image.
+     * @param pixels Number of pixels
+     */
+    public void addPixels(long pixels) {
+        if (current != null) current.pixels += pixels;
+    }
+
+    /**
+     * Records the number of generated image data bytes.
+     * @param bytes Number of bytes
+     */
+    public void addDataBytes(long bytes) {
+        if (current != null) current.dataBytes += bytes;
+    }
+
+    /**
+     * Records the size of the generated source code.
+     * @param bytes Number of characters
+     */
+    public void addOutputBytes(long bytes) {
+        if (current != null) current.outputBytes += bytes;
+    }
+
+    /**
+     * Creates a human readable report with per file and aggregated values.
+     * @return Report
+     */
+    public String createReport() {
+        var nl = System.lineSeparator();
+        var sb = new StringBuilder();
+        var stages = Stage.values();
+
+        sb.append(String.format(Locale.ROOT, "%-32s %10s %10s %10s", "File", "Pixels", "Data", "Output"));
+        for (var stage : stages) {
+            sb.append(String.format(Locale.ROOT, " %9s", stage.name().toLowerCase(Locale.ROOT)));
+        }
+        sb.append(String.format(Locale.ROOT, " %9s", "total")).append(nl);
+
+        for (var file : files) {
+            sb.append(String.format(Locale.ROOT, "%-32s %10d %10d %10d", shorten(file.filename, 32), file.pixels, file.dataBytes, file.outputBytes));
+            for (var stage : stages) {
+                sb.append(String.format(Locale.ROOT, " %7.2fms", file.getNanos(stage) /1e6));
+            }
+            sb.append(String.format(Locale.ROOT, " %7.2fms", file.getTotalNanos() /1e6)).append(nl);
+        }
+
+        sb.append(nl);
+        sb.append(String.format(Locale.ROOT, "Files: %d, wall time: %.2fms, pixels/s: %.0f, output bytes/s: %.0f",
+            files.size(), getWallNanos() /1e6, getPixelsPerSecond(), getOutputBytesPerSecond())).append(nl);
+        sb.append(String.format(Locale.ROOT, "%-8s %10s %10s %10s %12s", "Stage", "p50", "p99", "sum", "allocated")).append(nl);
+        for (var stage : stages) {
+            sb.append(String.format(Locale.ROOT, "%-8s %8.2fms %8.2fms %8.2fms %10.1fKB",
+                stage.name().toLowerCase(Locale.ROOT),
+                getPercentile(stage, 50) /1e6,
+                getPercentile(stage, 99) /1e6,
+                getSum(stage) /1e6,
+                getAllocatedSum(stage) /1024.0
+            )).append(nl);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a report in JSON format with per file and aggregated values.
+     * @return JSON report
+     */
+    public String createJsonReport() {
+        var stages = Stage.values();
+        var sb = new StringBuilder();
+        sb.append("{\"files\":[");
+        for (int i = 0; i < files.size(); i++) {
+            var file = files.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"file\":");
+            appendJsonString(sb, file.filename);
+            sb.append(",\"pixels\":").append(file.pixels);
+            sb.append(",\"dataBytes\":").append(file.dataBytes);
+            sb.append(",\"outputBytes\":").append(file.outputBytes);
+            sb.append(",\"totalNanos\":").append(file.getTotalNanos());
+            sb.append(",\"stages\":{");
+            for (var stage : stages) {
+                if (stage.ordinal() > 0) sb.append(',');
+                sb.append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\":{")
+                  .append("\"nanos\":").append(file.getNanos(stage))
+                  .append(",\"allocatedBytes\":").append(file.getAllocatedBytes(stage))
+                  .append('}');
+            }
+            sb.append("}}");
+        }
+        sb.append("],\"aggregate\":{");
+        sb.append("\"files\":").append(files.size());
+        sb.append(",\"wallNanos\":").append(getWallNanos());
+        sb.append(",\"pixelsPerSecond\":").append(Math.round(getPixelsPerSecond()));
+        sb.append(",\"outputBytesPerSecond\":").append(Math.round(getOutputBytesPerSecond()));
+        sb.append(",\"stages\":{");
+        for (var stage : stages) {
+            if (stage.ordinal() > 0) sb.append(',');
+            sb.append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\":{")
+              .append("\"p50Nanos\":").append(getPercentile(stage, 50))
+              .append(",\"p99Nanos\":").append(getPercentile(stage, 99))
+              .append(",\"sumNanos\":").append(getSum(stage))
+              .append(",\"allocatedBytes\":").append(getAllocatedSum(stage))
+              .append('}');
+        }
+        sb.append("}}}");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the time between the start of the first and the end of the last
+     * conversion stage.
+     * @return Time in nanoseconds
+     */
+    public long getWallNanos() {
+        return (startedAt < 0) ? 0 : Math.max(0, finishedAt - startedAt);
+    }
+
+    /**
+     * Returns the number of source pixels converted per second.
+     * @return Pixels per second
+     */
+    public double getPixelsPerSecond() {
+        long nanos = getWallNanos();
+        return (nanos == 0) ? 0 : files.stream().mapToLong(FileStats::getPixels).sum() *1e9 /nanos;
+    }
+
+    /**
+     * Returns the number of source code bytes generated per second.
+     * @return Bytes per second
+     */
+    public double getOutputBytesPerSecond() {
+        long nanos = getWallNanos();
+        return (nanos == 0) ? 0 : files.stream().mapToLong(FileStats::getOutputBytes).sum() *1e9 /nanos;
+    }
+
+    /**
+     * Returns the given percentile of the time spent per file in a stage.
+     * @param stage Conversion stage
+     * @param percentile Percentile (0 - 100)
+     * @return Time in nanoseconds
+     */
+    public long getPercentile(Stage stage, int percentile) {
+        if (files.isEmpty()) return 0;
+        var values = files.stream().mapToLong(f -> f.getNanos(stage)).sorted().toArray();
+        int rank = (int)Math.ceil(percentile /100.0 *values.length);
+        return values[Math.max(0, Math.min(values.length -1, rank -1))];
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Accounts the time and memory since the last stage change to the
+     * topmost stage.
+     */
+    private void account() {
+        long now = System.nanoTime();
+        long allocated = getAllocatedBytes();
+        if (depth > 0) {
+            int index = stageStack[depth -1].ordinal();
+            current.nanos[index] += now - resumedAt;
+            current.allocatedBytes[index] += allocated - resumedAllocated;
+        }
+        resumedAt = now;
+        resumedAllocated = allocated;
+    }
+
+    private long getAllocatedBytes() {
+        if (allocationCounter == null) return 0;
+        return allocationCounter.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private long getSum(Stage stage) {
+        return files.stream().mapToLong(f -> f.getNanos(stage)).sum();
+    }
+
+    private long getAllocatedSum(Stage stage) {
+        return files.stream().mapToLong(f -> f.getAllocatedBytes(stage)).sum();
+    }
+
+    private static String shorten(String s, int length) {
+        return (s.length() <= length) ? s : "..." + s.substring(s.length() - length +3);
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    // </editor-fold>
+
+}
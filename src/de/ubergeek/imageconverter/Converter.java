@@ -17,13 +17,25 @@
  */
 package de.ubergeek.imageconverter;
 
+import de.ubergeek.imageconverter.ConversionStats.Stage;
 import java.awt.Color;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import static java.nio.file.StandardOpenOption.*;
 import javax.imageio.ImageIO;
 
@@ -34,10 +46,54 @@ import javax.imageio.ImageIO;
 public class Converter {
     
     /**
-     * Conversion mode.
+     * Conversion mode: RGB565, the monochrome modes (vertically or
+     * horizontally grouped) and further packed color formats (RGB332,
+     * RGB444, RGB888 and 4 or 2 bit grayscale).
      */
     public enum Mode {
-        RGB565, MONOV, MONOH
+        RGB565, MONOV, MONOH, RGB332, RGB444, RGB888, GRAY4, GRAY2;
+        
+        /**
+         * Checks if this is one of the monochrome modes (1 bit per pixel).
+         * @return true for MONOV and MONOH
+         */
+        public boolean isMonochrome() {
+            return this == MONOV || this == MONOH;
+        }
+    };
+    
+    /**
+     * Filters for scaling the source image.
+     */
+    public enum ResizeFilter {
+        NEAREST, BOX, LANCZOS
+    };
+    
+    /**
+     * Output formats of the transparency mask: none, a separate array
+     * (variable name with suffix "_mask") or image and mask bytes
+     * interleaved in one array (Arduboy's "sprite plus mask" format).
+     */
+    public enum MaskFormat {
+        NONE, SEPARATE, INTERLEAVED
+    };
+    
+    /**
+     * Byte order of the pixels in the color modes: BIG puts the high byte
+     * (RGB565) or red (RGB888) of each pixel first, as SPI displays (ST7735,
+     * ILI9341 etc.) receive them. Formats with one byte or less per pixel
+     * are not affected.
+     */
+    public enum ByteOrder {
+        BIG, LITTLE
+    };
+    
+    /**
+     * Compression of the image data: NONE or RLE (runs and literal
+     * sequences of RGB565 pixels, see RunLengthEncoder).
+     */
+    public enum Compression {
+        NONE, RLE
     };
     
     /**
@@ -47,6 +103,33 @@ public class Converter {
      */
     public final static String ASCII_MAP = "$@B%8&WM#*oahkbdpqwmZO0QLCJUYXzcvunxrjft/\\|()1{}[]?-_+~<>i!lI;:,\"^`'. ";
     
+    /**
+     * Digits used for hex output.
+     */
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    /**
+     * Intensity of a white pixel in the ascii art calculation: the sum of
+     * the RGB565 components plus one, red and blue weighted twice.
+     */
+    private final static int ASCII_INTENSITY_MAX = 2 *32 + 64 + 2 *32;
+    
+    /**
+     * Input files of at least this size are memory mapped.
+     */
+    private final static int MAP_THRESHOLD = 1 << 18;
+    
+    /**
+     * Pixels with at least this alpha value are opaque in the mask.
+     */
+    private final static int MASK_ALPHA_THRESHOLD = 128;
+    
+    /**
+     * Largest frame (in array elements) whose delta spans are written with
+     * 16 bit offsets and lengths; larger frames use 32 bit values.
+     */
+    private final static int MAX_DELTA_NUMBER_16 = 0xFFFF;
+    
     // <editor-fold desc="Properties">
 
     /**
@@ -59,6 +142,33 @@ public class Converter {
      * If no image has been loaded, this should be null.
      */
     private BufferedImage sourceImage;
+    
+    /**
+     * Source image scaled with the filter scaledFilter, kept until another
+     * size or filter is requested or another image is loaded.
+     */
+    private BufferedImage scaledImage;
+    private ResizeFilter scaledFilter;
+    
+    /**
+     * Content bounds of trimmedImage for the given background color and
+     * mode, kept as they are needed several times per conversion.
+     */
+    private Rectangle trimBounds;
+    private BufferedImage trimmedImage;
+    private int trimmedColor;
+    private Mode trimmedMode;
+    
+    /**
+     * Optional statistics collector; if null no statistics are collected.
+     */
+    private ConversionStats stats;
+    
+    /**
+     * Optional delta encoder; if set, the image data of each conversion is
+     * created as changes to the previous conversion.
+     */
+    private FrameDelta frameDelta;
 
     // </editor-fold>
     
@@ -90,6 +200,40 @@ public class Converter {
         return filename != null && sourceImage != null;
     }
     
+    /**
+     * Returns the statistics collector or null if no statistics are collected.
+     * @return Statistics collector
+     */
+    public ConversionStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Sets a statistics collector that should receive timings and byte counts
+     * of all following conversions.
+     * @param stats Statistics collector or null to disable statistics
+     */
+    public void setStats(ConversionStats stats) {
+        this.stats = stats;
+    }
+    
+    /**
+     * Returns the delta encoder or null if frames are encoded completely.
+     * @return Delta encoder
+     */
+    FrameDelta getFrameDelta() {
+        return frameDelta;
+    }
+    
+    /**
+     * Sets a delta encoder for all following conversions, which are then
+     * treated as frames of one animation.
+     * @param frameDelta Delta encoder or null to encode frames completely
+     */
+    void setFrameDelta(FrameDelta frameDelta) {
+        this.frameDelta = frameDelta;
+    }
+    
     // </editor-fold>
     
     
@@ -101,6 +245,16 @@ public class Converter {
     public Converter() {
     }
     
+    /**
+     * Creates a converter for an image that has already been decoded.
+     * @param sourceImage Source image
+     * @param filename Name of the image (used for diagnostics only, may be null)
+     */
+    Converter(BufferedImage sourceImage, String filename) {
+        this.sourceImage = sourceImage;
+        this.filename = filename;
+    }
+    
     // </editor-fold>
     
     
@@ -114,12 +268,25 @@ public class Converter {
      * returned
      */
     public String getDefaultOutputFileName(boolean includePath) {
-        var path = Path.of(getFilename());
+        return getDefaultOutputFileName(getFilename(), includePath);
+    }
+    
+    /**
+     * Creates a default file name for the source file to be created from the
+     * given image file.
+     * @param filename Name of the image file
+     * @param includePath Indicates if the file path should be included
+     * (if input file name includes a path) or the file name itself should be
+     * returned
+     * @return Default file name for the source file
+     */
+    public static String getDefaultOutputFileName(String filename, boolean includePath) {
+        var path = Path.of(filename);
         var dir = path.getParent();
         var fname = path.getFileName().toString();
         
         fname = fname.substring(0, fname.lastIndexOf(".")) + ".c";
-        if (dir != null) fname = dir.toString() + File.separator + fname;
+        if (includePath && dir != null) fname = dir.toString() + File.separator + fname;
         return fname;
     }
     
@@ -128,9 +295,20 @@ public class Converter {
      * @return Default variable name
      */
     public String getDefaultVariableName() {
-        var path = Path.of(getFilename());
+        return getDefaultVariableName(getFilename());
+    }
+    
+    /**
+     * Creates a default variable name derived from the given image file name.
+     * @param filename Name of the image file
+     * @return Default variable name
+     */
+    public static String getDefaultVariableName(String filename) {
+        var path = Path.of(filename);
         var fname = path.getFileName().toString();
-        return fname.substring(0, fname.lastIndexOf(".")).replaceAll("[^a-zA-Z0-9\\-_]", "");
+        int end = fname.lastIndexOf(".");
+        if (end > 0) fname = fname.substring(0, end);
+        return fname.replaceAll("[^a-zA-Z0-9\\-_]", "");
     }
     
     /**
@@ -139,8 +317,63 @@ public class Converter {
      * @throws IOException 
      */
     public void loadImage(String filename) throws IOException {
-        this.filename = filename;
-        sourceImage = ImageIO.read(new File(filename));
+        var path = Path.of(filename);
+        loadImage(filename, () -> readImage(readFile(path)), Files.size(path));
+    }
+    
+    /**
+     * Loads an image from the given stream. The stream is not closed.
+     * @param in Stream containing an image file
+     * @param name Name of the image (used for diagnostics and statistics)
+     * @throws IOException If the stream could not be read
+     */
+    public void loadImage(InputStream in, String name) throws IOException {
+        loadImage(name, () -> ImageIO.read(in), 0);
+    }
+    
+    /**
+     * Loads an image from the remaining bytes of the given buffer. The
+     * position of the buffer is not changed.
+     * @param buffer Buffer containing an image file
+     * @param name Name of the image (used for diagnostics and statistics)
+     * @throws IOException If the image could not be read
+     */
+    public void loadImage(ByteBuffer buffer, String name) throws IOException {
+        loadImage(name, () -> readImage(buffer), buffer.remaining());
+    }
+    
+    /**
+     * Decodes an image from the remaining bytes of the given buffer without
+     * changing its position.
+     * @param buffer Buffer containing an image file
+     * @return Decoded image or null if the format is not supported
+     * @throws IOException If the image could not be read
+     */
+    static BufferedImage readImage(ByteBuffer buffer) throws IOException {
+        // Indexed PNGs are decoded without ImageIO
+        var image = PngDecoder.decode(buffer);
+        if (image != null) return image;
+        return ImageIO.read(new ByteBufferImageInputStream(buffer));
+    }
+    
+    /**
+     * Reads the content of a file. Files of MAP_THRESHOLD bytes and more are
+     * memory mapped: they are decoded straight from the page cache (which
+     * concurrent conversions of the same file share) without copying them
+     * into the heap.
+     * @param path Image file
+     * @return Buffer containing the file
+     * @throws IOException If the file could not be read
+     */
+    static ByteBuffer readFile(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("File too large: " + path);
+            if (size >= MAP_THRESHOLD) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            var buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+            return buffer.flip();
+        }
     }
     
     /**
@@ -149,23 +382,13 @@ public class Converter {
      * @param converterOptions Options for image conversion
      * @return BufferedImage with reduced colors
      */
-    public Image createReducedImage(ConverterOptions converterOptions) {        
-        var targetImage = new BufferedImage(
-            calculateTargetWidth(converterOptions),
-            calculateTargetHeight(converterOptions),
-            (converterOptions.mode != Mode.RGB565) ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_USHORT_565_RGB
-        );
-        
-        var graphics = targetImage.createGraphics();
-        graphics.setColor(converterOptions.backgroundColor);
-        graphics.fillRect(0, 0, targetImage.getWidth(), targetImage.getHeight());
-        graphics.drawImage(sourceImage, 0, 0, null);
-        
-        if (converterOptions.invertColors) {
-            invertImageColors(targetImage);
+    public Image createReducedImage(ConverterOptions converterOptions) {
+        enterStage(Stage.REDUCE);
+        try {
+            return reduceImage(converterOptions, false);
+        } finally {
+            exitStage();
         }
-        
-        return targetImage;
     }
     
     /**
@@ -176,40 +399,25 @@ public class Converter {
      * @throws IOException If the file could not be written
      */
     public void saveOutputfile(ConverterOptions options, boolean append) throws IOException {
-        var fname = options.outputFilename;
+        var fname = options.getOutputFilename();
         if (fname == null || fname.isBlank()) {
             fname = getDefaultOutputFileName(true);
         }
 
-        var sb = new StringBuilder();
-        
-        // Optional: create ascii representation
-        if (options.createAsciiArt) {
-            createAsciiArt(options, sb);
-        }
-
-        sb.append("// Image size: ").append(calculateTargetWidth(options)).append(" x ").append(calculateTargetHeight(options)).append(System.lineSeparator());
-        
-        // Variable declaration
-        sb.append(options.variableType).append(" ").append(options.variableName).append("[] = {").append(System.lineSeparator());
-        
-        // Optional: include dimensions of the created image data
-        if (options.includeDimensions) {
-            int targetWidth = calculateTargetWidth(options);
-            int targetHeight = calculateTargetHeight(options);
-            sb.append(targetWidth).append(", ").append(targetHeight).append(", ").append(System.lineSeparator());
-        }
-        
-        // Image data
-        createSourceCodeFromImage(options, sb);
-        
-        // End of variable declaration
-        sb.append("};").append(System.lineSeparator()).append(System.lineSeparator());
-
         if (append) {
-            Files.writeString(Path.of(fname), sb.toString(), CREATE, APPEND);
+            try (var writer = Files.newBufferedWriter(Path.of(fname), CREATE, APPEND)) {
+                writeSourceCode(options, writer, fname);
+            }
         } else {
-            Files.writeString(Path.of(fname), sb.toString(), CREATE, TRUNCATE_EXISTING);
+            try (var file = new AtomicOutputFile(Path.of(fname))) {
+                writeSourceCode(options, file.getWriter(), fname);
+                enterStage(Stage.WRITE);
+                try {
+                    file.commit();
+                } finally {
+                    exitStage();
+                }
+            }
         }
     }
     
@@ -223,193 +431,1321 @@ public class Converter {
     public void saveOutputfile(ConverterOptions options) throws IOException {
         saveOutputfile(options, false);
     }
+    
+    /**
+     * Creates the source code and writes it to the given writer.
+     * @param options Converter options
+     * @param writer Writer the source code should be written to
+     * @throws IOException If the source code could not be written
+     */
+    public void writeSourceCode(ConverterOptions options, Writer writer) throws IOException {
+        writeSourceCode(options, writer, options.getOutputFilename());
+    }
+    
+    /**
+     * Creates the complete source code (ascii art, variable declaration and
+     * image data) for the loaded image according to the given options.
+     * @param options Converter options
+     * @return Generated source code
+     */
+    public String createSourceCode(ConverterOptions options) {
+        var sb = generateSourceCode(options);
+        try {
+            return sb.toString();
+        } finally {
+            BufferPool.get().releaseBuilder(sb);
+        }
+    }
+    
+    /**
+     * Creates the source code and appends it to the given Appendable.
+     * @param options Converter options
+     * @param out Appendable the source code should be appended to
+     * @throws IOException If the source code could not be appended
+     */
+    public void appendSourceCode(ConverterOptions options, Appendable out) throws IOException {
+        if (out instanceof Writer) {
+            writeSourceCode(options, (Writer)out);
+            return;
+        }
+        var sb = generateSourceCode(options);
+        enterStage(Stage.WRITE);
+        try {
+            out.append(sb);
+        } finally {
+            exitStage();
+            BufferPool.get().releaseBuilder(sb);
+        }
+    }
+    
+    /**
+     * Creates the image data in binary form, exactly as the bytes of the
+     * generated array (without the optional dimensions). Color pixels are
+     * stored in the byte order of the options (RLE compressed data as big
+     * endian words), monochrome images use the same bit order as the
+     * generated source code.
+     * @param options Converter options
+     * @return Packed image data
+     */
+    public byte[] createPackedData(ConverterOptions options) {
+        enterStage(Stage.ENCODE);
+        try {
+            var img = acquireReducedImage(options);
+            try {
+                var data = switch (options.getMode()) {
+                    case MONOV -> packMonoV(img);
+                    case MONOH -> packMonoH(img);
+                    case RGB565 -> (options.getCompression() == Compression.RLE) ? packRunLength(img) : packColorData(img, options);
+                    case RGB332, RGB444, RGB888, GRAY4, GRAY2 -> packColorData(img, options);
+                };
+                switch (options.getMaskFormat()) {
+                    case SEPARATE -> {
+                        // The mask array follows the image array
+                        var mask = createMask(options);
+                        var result = Arrays.copyOf(data, data.length + mask.length);
+                        System.arraycopy(mask, 0, result, data.length, mask.length);
+                        data = result;
+                    }
+                    case INTERLEAVED -> data = interleave(data, createMask(options), data.length);
+                }
+                if (stats != null) stats.addDataBytes(data.length);
+                return data;
+            } finally {
+                BufferPool.get().releaseImage(img);
+            }
+        } finally {
+            exitStage();
+        }
+    }
+    
+    /**
+     * Creates the source code for an image whose colors already have been
+     * reduced, e.g. a sprite atlas assembled from reduced images. The image
+     * must have the type created for the mode and a size aligned to its byte
+     * grouping; options for resizing, trimming and masks are not applied.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param stats Statistics to be updated or null
+     * @return Generated source code
+     */
+    static String createSourceCode(BufferedImage img, ConverterOptions options, ConversionStats stats) {
+        var converter = new Converter(img, null);
+        converter.setStats(stats);
+        var encodeOptions = options.toBuilder()
+            .setResizeWidth(0)
+            .setResizeHeight(0)
+            .setTrim(false)
+            .setMaskFormat(MaskFormat.NONE)
+            .build();
+        converter.enterStage(Stage.ENCODE);
+        try {
+            var sb = new StringBuilder(converter.estimateSourceCodeLength(encodeOptions));
+            converter.buildSourceCode(img, encodeOptions, sb);
+            if (stats != null) stats.addOutputBytes(sb.length());
+            return sb.toString();
+        } finally {
+            converter.exitStage();
+        }
+    }
 
     // </editor-fold>
     
     
     // <editor-fold desc="Internal methods">
     
-    private int calculateTargetWidth(ConverterOptions options) {
-        if (options.mode == Mode.MONOH) return (int)(Math.ceil(sourceImage.getWidth() /8f) *8);
-        return sourceImage.getWidth();
-    }
-    
-    private int calculateTargetHeight(ConverterOptions options) {
-        if (options.mode == Mode.MONOV) return (int)(Math.ceil(sourceImage.getHeight() /8f) *8);
-        return sourceImage.getHeight();
+    /**
+     * Source of an image to be decoded.
+     */
+    @FunctionalInterface
+    private interface ImageSource {
+        BufferedImage read() throws IOException;
     }
     
-    private char getAsciiCharByIntensity(float i) {
-        int index = (int)Math.floor(69 *i);
-        return ASCII_MAP.charAt(index);
+    /**
+     * Decodes an image and makes it the source image.
+     * @param filename Name of the image
+     * @param source Decodes the image
+     * @param fileSize Size of the image file if known
+     * @throws IOException If the image could not be read
+     */
+    private void loadImage(String filename, ImageSource source, long fileSize) throws IOException {
+        if (stats != null) stats.beginFile(filename);
+        var event = new ConversionEvents.DecodeEvent();
+        event.begin();
+        enterStage(Stage.DECODE);
+        try {
+            this.filename = filename;
+            sourceImage = source.read();
+            scaledImage = null;
+        } finally {
+            exitStage();
+        }
+        if (event.shouldCommit()) {
+            describeEvent(event, null);
+            event.fileSize = fileSize;
+            event.commit();
+        }
+        if (stats != null && sourceImage != null) {
+            stats.addPixels((long)sourceImage.getWidth() *sourceImage.getHeight());
+        }
     }
     
     /**
-     * Creates the source code according to the given ConvertOptions and appends
-     * it to the given StringBuilder
+     * Creates the source code and writes it to the given writer without
+     * creating an intermediate String.
      * @param options Converter options
-     * @param sb String Builder
+     * @param writer Writer the source code should be written to
+     * @param outputFilename Name of the output file (for diagnostics only)
+     * @throws IOException If the source code could not be written
      */
-    private int createSourceCodeFromImage(ConverterOptions options, StringBuilder sb) {
-        switch (options.mode) {
-            case MONOV -> {
-                return createMonoVSourceCode(options, sb);
-            }
-            
-            case MONOH -> {
-                return createMonoHSourceCode(options, sb);
-            }
-            
-            case RGB565 -> {
-                return createRgb565SourceCode(options, sb);
+    private void writeSourceCode(ConverterOptions options, Writer writer, String outputFilename) throws IOException {
+        var pool = BufferPool.get();
+        var sb = generateSourceCode(options);
+        int length = sb.length();
+        var event = new ConversionEvents.WriteEvent();
+        event.begin();
+        enterStage(Stage.WRITE);
+        try {
+            var buffer = pool.getCharBuffer();
+            for (int offset = 0; offset < length; offset += buffer.length) {
+                int count = Math.min(buffer.length, length - offset);
+                sb.getChars(offset, offset + count, buffer, 0);
+                writer.write(buffer, 0, count);
             }
+        } finally {
+            exitStage();
+            pool.releaseBuilder(sb);
+        }
+        if (event.shouldCommit()) {
+            describeEvent(event, options);
+            event.outputFilename = outputFilename;
+            // The builder has been cleared when it was handed back
+            event.outputSize = length;
+            event.commit();
         }
-        return 0;
     }
     
     /**
-     * Creates an ascii representation of the source image.
-     * @param options Converter options
-     * @param sb String Builder
+     * Writes source code that has been created before (by createSourceCode(),
+     * possibly on another thread) and records it like writeSourceCode():
+     * as write stage of the statistics and as WriteEvent. The image size is
+     * not known here, so the event only describes file, mode and output.
+     * @param sourceCode Generated source code
+     * @param options Converter options the source code was created with
+     * @param writer Writer the source code should be written to
+     * @param filename Name of the input file
+     * @param stats Statistics collector or null
+     * @throws IOException If the source code could not be written
      */
-    private void createAsciiArt(ConverterOptions options, StringBuilder sb) {
-        var img = (BufferedImage)createReducedImage(options);
-        int height = img.getHeight();
-        int width = img.getWidth();
-        float intensity;
-        
-        for (int y = 0; y < height; y++) {
-            sb.append("// ");
-            for (int x = 0; x < width; x++) {
-                int[] array = new int[img.getColorModel().getNumComponents()];
-                img.getRaster().getPixel(x, y, array);
-                if (img.getType() == BufferedImage.TYPE_BYTE_BINARY) {
-                    intensity = array[0];
-                } else {
-                    intensity = (((array[0] +1) /32f)
-                                + ((array[1] +1) /64f)
-                                + ((array[2] +1) /32f)) /3f;
-                }
-                sb.append(getAsciiCharByIntensity(intensity));
-            }
-            sb.append(System.lineSeparator());
+    static void writeSourceCode(String sourceCode, ConverterOptions options, Writer writer, String filename, ConversionStats stats) throws IOException {
+        var event = new ConversionEvents.WriteEvent();
+        event.begin();
+        if (stats != null) stats.enter(Stage.WRITE);
+        try {
+            writer.write(sourceCode);
+        } finally {
+            if (stats != null) stats.exit();
+        }
+        if (event.shouldCommit()) {
+            event.filename = filename;
+            event.mode = options.getMode().name();
+            event.outputFilename = options.getOutputFilename();
+            event.outputSize = sourceCode.length();
+            event.commit();
         }
     }
     
     /**
-     * Creates the source code in RGB-565 format
+     * Creates the complete source code in a pooled buffer. The buffer must be
+     * handed back to the pool by the caller.
      * @param options Converter options
-     * @param sb StringBuilder
-     * @return Number of bytes defined
+     * @return Buffer containing the generated source code
      */
-    private int createRgb565SourceCode(ConverterOptions options, StringBuilder sb) {
-        var img = (BufferedImage)createReducedImage(options);
-        int result;
-        int numberOfBytes = 0;
-        int height = img.getHeight();
-        int width = img.getWidth();
-        
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int[] array = new int[img.getColorModel().getNumComponents()];
-                img.getRaster().getPixel(x, y, array);
-                result = (array[2]) + (array[1] << 5) + (array[0] << 11);
-                
-                sb.append("0x").append(
-                    Integer.toHexString(result & 0xFFFF)
-                );
-                if (x != width -1 || y != height -1) {
-                    sb.append(", ");
-                }
-                numberOfBytes += 2;
-            }
-            sb.append(System.lineSeparator());
+    private StringBuilder generateSourceCode(ConverterOptions options) {
+        enterStage(Stage.ENCODE);
+        try {
+            var sb = BufferPool.get().acquireBuilder(estimateSourceCodeLength(options));
+            buildSourceCode(options, sb);
+            if (stats != null) stats.addOutputBytes(sb.length());
+            return sb;
+        } finally {
+            exitStage();
         }
-        return numberOfBytes;
     }
     
     /**
-     * Creates the source code for monochrome images (horizontally grouped, big endian).
-     * Bytes will be calculated horizontally; image width will be padded to a
-     * multiple of 8.
+     * Estimates the size of the generated source code, so the buffer does not
+     * need to grow while appending.
      * @param options Converter options
-     * @param sb StringBuilder
-     * @return Number of bytes defined
+     * @return Expected number of characters
      */
-    private int createMonoHSourceCode(ConverterOptions options, StringBuilder sb) {
-        var img = (BufferedImage)createReducedImage(options);
-        byte resultByte;
-        int numberOfElements = 0;
-        int width = img.getWidth();
-        int height = img.getHeight();
-        
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x += 8) {
-                resultByte = 0;
-                for (int counter = 0; counter < 8; counter++) {
-                    if (x +counter < width) {
-                        int[] array = new int[img.getColorModel().getNumComponents()];
-                        img.getRaster().getPixel(x +counter, y, array);
-                        resultByte |= (array[0] << 7 -counter);
-                    }
-                }
-                
-                sb.append("B").append(
-                    String.format("%8s", Integer.toBinaryString(resultByte & 0xFF)).replace(' ', '0')
-                );
-                
-                //sb.append("0x").append(
-                //    Integer.toHexString(resultByte & 0xFF)
-                //);
-                
-                if (x < width -8 || y < height -1) {
-                    sb.append(", ");
-                }
-                numberOfElements++;
-            }
-            sb.append(System.lineSeparator());
+    private int estimateSourceCodeLength(ConverterOptions options) {
+        long width = calculateTargetWidth(options);
+        long height = calculateTargetHeight(options);
+        long length = 256 + height *4;
+        switch (options.getMode()) {
+            case RGB565 -> length += width *height *8;  // "0xffff, "
+            case MONOV -> length += width *height /8 *6; // "0xff, "
+            case MONOH -> length += width *height /8 *11; // "B00000000, "
+            case RGB332, RGB444, RGB888, GRAY4, GRAY2 -> length += ColorFormats.getRowBytes(options.getMode(), (int)width) *height *6; // "0xff, "
+        }
+        if (options.getMaskFormat() != MaskFormat.NONE) length *= 2;
+        if (options.isCreateAsciiArt()) {
+            long scale = getAsciiArtScale((int)width, options);
+            length += ((width +scale -1) /scale +5) *((height +scale -1) /scale);
         }
-        return numberOfElements;
+        return (int)Math.min(length, Integer.MAX_VALUE - 16);
     }
     
     /**
-     * Creates the source code for monochrome images (vertically grouped).
-     * Bytes will be calculated vertically; image height will be padded to a
-     * multiple of 8.
+     * Returns a pooled reduced image that must be handed back with
+     * BufferPool.releaseImage() when it is no longer needed.
      * @param options Converter options
-     * @param sb StringBuilder
-     * @return Number of bytes defined
+     * @return BufferedImage with reduced colors
      */
-    private int createMonoVSourceCode(ConverterOptions options, StringBuilder sb) {
-        var img = (BufferedImage)createReducedImage(options);
-        int resultByte;
-        int numberOfElements = 0;
-        int width = img.getWidth();
-        int height = img.getHeight();
-        
-        for (int y = 0; y < height; y += 8) {
-            for (int x = 0; x < width; x++) {
-                resultByte = 0;
-                for (int counter = 0; counter < 8; counter++) {
-                    if (y +counter < height) {
-                        int[] array = new int[img.getColorModel().getNumComponents()];
-                        img.getRaster().getPixel(x, y +counter, array);                
-                        resultByte |= (array[0] << counter);
-                    }
-                }
-
-                sb.append("0x").append(
-                    Integer.toHexString(resultByte & 0xFF)
-                );
-                
-                if (x < width -1 || y < height -8) {
-                    sb.append(", ");
-                }
-                numberOfElements++;
-            }
-            sb.append(System.lineSeparator());
+    private BufferedImage acquireReducedImage(ConverterOptions options) {
+        enterStage(Stage.REDUCE);
+        try {
+            return reduceImage(options, true);
+        } finally {
+            exitStage();
+        }
+    }
+    
+    private void enterStage(Stage stage) {
+        if (stats != null) stats.enter(stage);
+    }
+    
+    private void exitStage() {
+        if (stats != null) stats.exit();
+    }
+    
+    /**
+     * Sets the fields all conversion events have in common.
+     * @param event Event to be committed
+     * @param options Converter options or null if not known yet
+     */
+    private void describeEvent(ConversionEvents.ConversionEvent event, ConverterOptions options) {
+        event.filename = filename;
+        if (sourceImage != null) {
+            event.width = (options != null) ? calculateTargetWidth(options) : sourceImage.getWidth();
+            event.height = (options != null) ? calculateTargetHeight(options) : sourceImage.getHeight();
         }
-        return numberOfElements;
+        if (options != null) event.mode = options.getMode().name();
+    }
+    
+    /**
+     * Creates a copy of the source image with reduced color space.
+     * @param converterOptions Options for image conversion
+     * @param pooled Set to true if the target image should be taken from the
+     * buffer pool
+     * @return BufferedImage with reduced colors
+     */
+    private BufferedImage reduceImage(ConverterOptions converterOptions, boolean pooled) {
+        var image = getInputImage(converterOptions);
+        var event = new ConversionEvents.ReduceEvent();
+        event.begin();
+        int targetWidth = calculateTargetWidth(converterOptions);
+        int targetHeight = calculateTargetHeight(converterOptions);
+        var mode = converterOptions.getMode();
+        int targetType = switch (mode) {
+            case RGB565 -> BufferedImage.TYPE_USHORT_565_RGB;
+            case MONOV, MONOH -> BufferedImage.TYPE_BYTE_BINARY;
+            default -> BufferedImage.TYPE_INT_RGB;
+        };
+        var targetImage = pooled
+            ? BufferPool.get().acquireImage(targetWidth, targetHeight, targetType)
+            : new BufferedImage(targetWidth, targetHeight, targetType);
+        
+        // Common image types are reduced directly from the source raster
+        if (FastReducer.supports(image, converterOptions.getBackgroundColor())) {
+            FastReducer.reduce(image, targetImage, converterOptions.getBackgroundColor(), converterOptions.isInvertColors());
+            if (targetType == BufferedImage.TYPE_INT_RGB) ColorFormats.quantize(targetImage, mode);
+            if (event.shouldCommit()) {
+                describeEvent(event, converterOptions);
+                event.fastPath = true;
+                event.commit();
+            }
+            return targetImage;
+        }
+        
+        var graphics = targetImage.createGraphics();
+        graphics.setColor(converterOptions.getBackgroundColor());
+        graphics.fillRect(0, 0, targetImage.getWidth(), targetImage.getHeight());
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        
+        if (converterOptions.isInvertColors()) {
+            enterStage(Stage.INVERT);
+            try {
+                invertImageColors(targetImage);
+            } finally {
+                exitStage();
+            }
+        }
+        if (targetType == BufferedImage.TYPE_INT_RGB) ColorFormats.quantize(targetImage, mode);
+        
+        if (event.shouldCommit()) {
+            describeEvent(event, converterOptions);
+            event.commit();
+        }
+        return targetImage;
+    }
+    
+    /**
+     * Creates the complete source code (ascii art, variable declaration and
+     * image data) for the loaded image according to the given options.
+     * @param options Converter options
+     * @param sb StringBuilder the source code is appended to
+     */
+    private void buildSourceCode(ConverterOptions options, StringBuilder sb) {
+        var img = acquireReducedImage(options);
+        try {
+            buildSourceCode(img, options, sb);
+        } finally {
+            BufferPool.get().releaseImage(img);
+        }
+    }
+    
+    /**
+     * Creates the complete source code for the given reduced image; the
+     * ascii art and the image data are both created from this image.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param sb StringBuilder the source code is appended to
+     */
+    private void buildSourceCode(BufferedImage img, ConverterOptions options, StringBuilder sb) {
+        
+        // Optional: create ascii representation
+        if (options.isCreateAsciiArt()) {
+            var event = new ConversionEvents.EncodeEvent();
+            event.begin();
+            enterStage(Stage.ASCII);
+            try {
+                createAsciiArt(img, options, sb);
+            } finally {
+                exitStage();
+            }
+            if (event.shouldCommit()) {
+                describeEvent(event, options);
+                event.encoder = "ASCII";
+                event.outputSize = sb.length();
+                event.commit();
+            }
+        }
+
+        sb.append("// Image size: ").append(calculateTargetWidth(options)).append(" x ").append(calculateTargetHeight(options)).append(System.lineSeparator());
+        if (options.isTrim()) {
+            var bounds = getTrimBounds(options);
+            sb.append("// Offset: ").append(bounds.x).append(", ").append(bounds.y).append(System.lineSeparator());
+        }
+        
+        // Variable declaration
+        sb.append(options.getVariableType()).append(" ").append(options.getVariableName()).append("[] = {").append(System.lineSeparator());
+        
+        // Optional: include dimensions of the created image data
+        if (options.isIncludeDimensions()) {
+            appendHeaderValue(sb, calculateTargetWidth(options), options);
+            sb.append(", ");
+            appendHeaderValue(sb, calculateTargetHeight(options), options);
+            sb.append(", ").append(System.lineSeparator());
+        }
+        
+        // Image data
+        var event = new ConversionEvents.EncodeEvent();
+        event.begin();
+        int length = sb.length();
+        int dataBytes = (frameDelta != null) ? createDeltaSourceCode(img, options, sb) : createSourceCodeFromImage(img, options, sb);
+        if (stats != null) stats.addDataBytes(dataBytes);
+        if (event.shouldCommit()) {
+            describeEvent(event, options);
+            event.encoder = options.getMode().name();
+            event.outputSize = sb.length() - length;
+            event.commit();
+        }
+        
+        // End of variable declaration
+        sb.append("};").append(System.lineSeparator()).append(System.lineSeparator());
+        
+        // Optional: position of the trimmed image within the original image
+        if (options.isTrim()) {
+            var bounds = getTrimBounds(options);
+            sb.append(options.getVariableType()).append(" ").append(options.getVariableName()).append("_offset[] = {").append(System.lineSeparator());
+            appendHeaderValue(sb, bounds.x, options);
+            sb.append(", ");
+            appendHeaderValue(sb, bounds.y, options);
+            sb.append(System.lineSeparator());
+            sb.append("};").append(System.lineSeparator()).append(System.lineSeparator());
+        }
+        
+        // Optional: mask as separate array (without dimensions)
+        if (options.getMaskFormat() == MaskFormat.SEPARATE) {
+            var mask = createMask(options);
+            sb.append(options.getVariableType()).append(" ").append(options.getVariableName()).append("_mask[] = {").append(System.lineSeparator());
+            appendMonoBytes(sb, mask, mask.length, getMonoBytesPerLine(options), options.getMode());
+            sb.append("};").append(System.lineSeparator()).append(System.lineSeparator());
+            if (stats != null) stats.addDataBytes(mask.length);
+        }
+    }
+    
+    /**
+     * Appends a dimension or offset as one literal. If the color data
+     * consists of bytes (and so does its default variable type), the value is
+     * split into two bytes (big endian) like the numbers of delta frames, so
+     * sizes above 255 fit. The monochrome modes keep one literal, as
+     * expected by Arduboy's sprite format.
+     * @param sb StringBuilder
+     * @param value Dimension or offset (16 bit)
+     * @param options Converter options
+     */
+    private static void appendHeaderValue(StringBuilder sb, int value, ConverterOptions options) {
+        if (!options.getMode().isMonochrome() && getWordBytes(options) == 1) {
+            sb.append(value >> 8).append(", ").append(value & 0xFF);
+        } else {
+            sb.append(value);
+        }
+    }
+    
+    private int calculateTargetWidth(ConverterOptions options) {
+        int width = options.isTrim() ? getTrimBounds(options).width : calculateScaledWidth(options);
+        int alignment = ColorFormats.getHorizontalAlignment(options.getMode());
+        return (width +alignment -1) /alignment *alignment;
+    }
+    
+    private int calculateTargetHeight(ConverterOptions options) {
+        int height = options.isTrim() ? getTrimBounds(options).height : calculateScaledHeight(options);
+        if (options.getMode() == Mode.MONOV) return (int)(Math.ceil(height /8f) *8);
+        return height;
+    }
+    
+    /**
+     * Calculates the width of the scaled source image. If only the height is
+     * given, the aspect ratio is kept.
+     * @param options Converter options
+     * @return Width of the source image after resizing
+     */
+    private int calculateScaledWidth(ConverterOptions options) {
+        if (options.getResizeWidth() > 0) return options.getResizeWidth();
+        if (options.getResizeHeight() > 0) {
+            return (int)Math.max(1, Math.round((double)sourceImage.getWidth() *options.getResizeHeight() /sourceImage.getHeight()));
+        }
+        return sourceImage.getWidth();
+    }
+    
+    /**
+     * Calculates the height of the scaled source image. If only the width is
+     * given, the aspect ratio is kept.
+     * @param options Converter options
+     * @return Height of the source image after resizing
+     */
+    private int calculateScaledHeight(ConverterOptions options) {
+        if (options.getResizeHeight() > 0) return options.getResizeHeight();
+        if (options.getResizeWidth() > 0) {
+            return (int)Math.max(1, Math.round((double)sourceImage.getHeight() *options.getResizeWidth() /sourceImage.getWidth()));
+        }
+        return sourceImage.getHeight();
+    }
+    
+    /**
+     * Returns the source image scaled according to the given options, or the
+     * source image itself if it already has the requested size.
+     * @param options Converter options
+     * @return Scaled source image
+     */
+    private BufferedImage getScaledImage(ConverterOptions options) {
+        int width = calculateScaledWidth(options);
+        int height = calculateScaledHeight(options);
+        if (width == sourceImage.getWidth() && height == sourceImage.getHeight()) return sourceImage;
+        if (scaledImage == null || scaledImage.getWidth() != width || scaledImage.getHeight() != height || scaledFilter != options.getResizeFilter()) {
+            enterStage(Stage.RESIZE);
+            try {
+                scaledImage = Resizer.resize(sourceImage, width, height, options.getResizeFilter());
+                scaledFilter = options.getResizeFilter();
+            } finally {
+                exitStage();
+            }
+        }
+        return scaledImage;
+    }
+    
+    /**
+     * Returns the part of the scaled source image that is converted: the
+     * whole image or, if it should be trimmed, its content bounds.
+     * @param options Converter options
+     * @return Image to be color reduced
+     */
+    private BufferedImage getInputImage(ConverterOptions options) {
+        var image = getScaledImage(options);
+        if (!options.isTrim()) return image;
+        var bounds = getTrimBounds(options);
+        if (bounds.width == image.getWidth() && bounds.height == image.getHeight()) return image;
+        return image.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+    
+    /**
+     * Returns the content bounds of the scaled source image (see
+     * findContentBounds()).
+     * @param options Converter options
+     * @return Content bounds
+     */
+    Rectangle getTrimBounds(ConverterOptions options) {
+        var image = getScaledImage(options);
+        int color = options.getBackgroundColor().getRGB() & 0xFFFFFF;
+        if (image != trimmedImage || color != trimmedColor || options.getMode() != trimmedMode) {
+            trimBounds = findContentBounds(image, color, options.getMode());
+            trimmedImage = image;
+            trimmedColor = color;
+            trimmedMode = options.getMode();
+        }
+        return trimBounds;
+    }
+    
+    /**
+     * Finds the smallest rectangle containing all pixels that are neither
+     * fully transparent nor of the background color, in a single pass over
+     * the rows. Each row is only searched from the left and the right up to
+     * the bounds found so far, or until its first content pixel.
+     * The left edge is aligned to the byte grouping of MONOH (multiple of 8),
+     * the top edge to the 8 row bands of MONOV. An image without content is
+     * reduced to its top left pixel.
+     * @param image Scaled source image
+     * @param color Background color (RGB)
+     * @param mode Conversion mode
+     * @return Content bounds
+     */
+    private static Rectangle findContentBounds(BufferedImage image, int color, Mode mode) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int left = width;
+        int right = -1;
+        int top = -1;
+        int bottom = -1;
+        var row = BufferPool.get().getRowBuffer(width);
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            boolean content = false;
+            for (int x = 0; x < left; x++) {
+                if (isContent(row[x], color)) {
+                    left = x;
+                    content = true;
+                    break;
+                }
+            }
+            for (int x = width -1; x > right && x >= left; x--) {
+                if (isContent(row[x], color)) {
+                    right = x;
+                    content = true;
+                    break;
+                }
+            }
+            for (int x = left; !content && x <= right; x++) {
+                content = isContent(row[x], color);
+            }
+            if (content) {
+                if (top < 0) top = y;
+                bottom = y;
+            }
+        }
+        if (top < 0) return new Rectangle(0, 0, 1, 1);
+        left -= left % ColorFormats.getHorizontalAlignment(mode);
+        if (mode == Mode.MONOV) top &= ~7;
+        return new Rectangle(left, top, right -left +1, bottom -top +1);
+    }
+    
+    private static boolean isContent(int argb, int color) {
+        return (argb >>> 24) != 0 && ((argb ^ color) & 0xFFFFFF) != 0;
+    }
+    
+    /**
+     * Appends the given value as lower case hex number without leading zeros
+     * (like Integer.toHexString(), but without creating a String).
+     * @param sb StringBuilder
+     * @param value Value (unsigned)
+     */
+    private static void appendHex(StringBuilder sb, int value) {
+        int shift = (value == 0) ? 0 : (31 - Integer.numberOfLeadingZeros(value)) & ~3;
+        for (; shift >= 0; shift -= 4) {
+            sb.append(HEX_DIGITS[(value >> shift) & 0xF]);
+        }
+    }
+    
+    /**
+     * Appends the given byte as binary number with 8 digits (like the
+     * Arduino B00000000 notation, without the prefix).
+     * @param sb StringBuilder
+     * @param value Byte value
+     */
+    private static void appendBinary(StringBuilder sb, int value) {
+        for (int bit = 7; bit >= 0; bit--) {
+            sb.append((char)('0' + ((value >> bit) & 1)));
+        }
+    }
+    
+    /**
+     * Creates the source code according to the given ConvertOptions and appends
+     * it to the given StringBuilder
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param sb String Builder
+     */
+    private int createSourceCodeFromImage(BufferedImage img, ConverterOptions options, StringBuilder sb) {
+        if (options.getMaskFormat() == MaskFormat.INTERLEAVED) {
+            return createInterleavedSourceCode(img, options, sb);
+        }
+        switch (options.getMode()) {
+            case MONOV -> {
+                return createMonoVSourceCode(img, sb);
+            }
+
+            case MONOH -> {
+                return createMonoHSourceCode(img, sb);
+            }
+
+            case RGB565 -> {
+                if (options.getCompression() == Compression.RLE) return createRunLengthSourceCode(img, sb);
+                if (!isDefaultLayout(options)) return createWordSourceCode(img, options, sb);
+                return createRgb565SourceCode(img, sb);
+            }
+
+            case RGB332, RGB444, RGB888, GRAY4, GRAY2 -> {
+                return createWordSourceCode(img, options, sb);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Creates an ascii representation of the color reduced image. Images
+     * wider than the configured ascii art width are scaled down by an integer
+     * factor; each character then shows the average intensity of a square
+     * block of pixels.
+     * Intensities are calculated with integer math in steps of 1/192 (the sum
+     * of the weighted RGB565 components), which gives exactly the same
+     * characters as the former floating point calculation.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param sb String Builder
+     */
+    private void createAsciiArt(BufferedImage img, ConverterOptions options, StringBuilder sb) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int scale = getAsciiArtScale(width, options);
+        int columns = (width +scale -1) /scale;
+        var intensities = BufferPool.get().getRowBuffer(width);
+        var sums = new long[columns];
+        var line = new char[columns];
+        
+        for (int y = 0; y < height; y += scale) {
+            int rows = Math.min(scale, height -y);
+            Arrays.fill(sums, 0);
+            for (int row = y; row < y +rows; row++) {
+                readIntensities(img, row, intensities);
+                for (int x = 0; x < width; x++) {
+                    sums[x /scale] += intensities[x];
+                }
+            }
+            for (int column = 0; column < columns; column++) {
+                long pixels = (long)rows *Math.min(scale, width -column *scale);
+                line[column] = ASCII_MAP.charAt((int)(69 *sums[column] /(ASCII_INTENSITY_MAX *pixels)));
+            }
+            sb.append("// ").append(line).append(System.lineSeparator());
+        }
+    }
+    
+    /**
+     * Returns the factor the ascii art of an image with the given width is
+     * scaled down by.
+     * @param width Image width
+     * @param options Converter options
+     * @return Scale factor (1 for one character per pixel)
+     */
+    private static int getAsciiArtScale(int width, ConverterOptions options) {
+        int maxWidth = options.getAsciiArtWidth();
+        return (maxWidth > 0 && width > maxWidth) ? (width +maxWidth -1) /maxWidth : 1;
+    }
+    
+    /**
+     * Reads the intensities (0 to ASCII_INTENSITY_MAX) of one row of a color
+     * reduced image directly from its raster.
+     * @param img Color reduced image (TYPE_BYTE_BINARY, TYPE_USHORT_565_RGB
+     * or TYPE_INT_RGB)
+     * @param y Row
+     * @param intensities Array for the intensities of all pixels of the row
+     */
+    private static void readIntensities(BufferedImage img, int y, int[] intensities) {
+        var raster = img.getRaster();
+        int width = img.getWidth();
+        if (img.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+            var data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int offset = y *((MultiPixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+            for (int x = 0; x < width; x++) {
+                intensities[x] = ((data[offset + (x >> 3)] >> (7 - (x & 7))) & 1) *ASCII_INTENSITY_MAX;
+            }
+        } else if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            var data = ((DataBufferInt)raster.getDataBuffer()).getData();
+            int offset = y *((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+            for (int x = 0; x < width; x++) {
+                int rgb = data[offset + x];
+                intensities[x] = 2 *((rgb >> 19) & 0x1F) + ((rgb >> 10) & 0x3F) + 2 *((rgb >> 3) & 0x1F) + 5;
+            }
+        } else {
+            var data = ((DataBufferUShort)raster.getDataBuffer()).getData();
+            int offset = y *((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+            for (int x = 0; x < width; x++) {
+                int pixel = data[offset + x];
+                intensities[x] = 2 *((pixel >> 11) & 0x1F) + ((pixel >> 5) & 0x3F) + 2 *(pixel & 0x1F) + 5;
+            }
+        }
+    }
+    
+    /**
+     * Creates the source code in RGB-565 format
+     * @param img Color reduced image
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createRgb565SourceCode(BufferedImage img, StringBuilder sb) {
+        int numberOfBytes = 0;
+        int height = img.getHeight();
+        int width = img.getWidth();
+        
+        // The reduced image stores each pixel as one RGB565 word, so the
+        // words can be taken from the raster without unpacking the components
+        var data = ((DataBufferUShort)img.getRaster().getDataBuffer()).getData();
+        
+        for (int y = 0; y < height; y++) {
+            int offset = y *width;
+            for (int x = 0; x < width; x++) {
+                sb.append("0x");
+                appendHex(sb, data[offset + x] & 0xFFFF);
+                if (x != width -1 || y != height -1) {
+                    sb.append(", ");
+                }
+                numberOfBytes += 2;
+            }
+            sb.append(System.lineSeparator());
+        }
+        return numberOfBytes;
+    }
+    
+    /**
+     * Creates the source code for color data in a custom layout (byte order,
+     * word size or row alignment, see packColorData()). Each line contains
+     * the literals of one row, as far as rows end on a literal boundary.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createWordSourceCode(BufferedImage img, ConverterOptions options, StringBuilder sb) {
+        int wordBytes = getWordBytes(options);
+        var words = toWords(packColorData(img, options), wordBytes);
+        int wordsPerLine = Math.max(1, getColorStride(img.getWidth(), options) /wordBytes);
+        for (int i = 0; i < words.length; i++) {
+            sb.append("0x");
+            appendHex(sb, words[i]);
+            if (i < words.length -1) {
+                sb.append(", ");
+            }
+            if ((i +1) % wordsPerLine == 0 || i == words.length -1) {
+                sb.append(System.lineSeparator());
+            }
+        }
+        return words.length *wordBytes;
+    }
+    
+    /**
+     * Creates the source code for RLE compressed RGB565 data (see
+     * RunLengthEncoder). Each packet starts a new line; literal packets are
+     * broken into lines of the image width.
+     * @param img Color reduced image
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createRunLengthSourceCode(BufferedImage img, StringBuilder sb) {
+        int width = img.getWidth();
+        var data = ((DataBufferUShort)img.getRaster().getDataBuffer()).getData();
+        var words = RunLengthEncoder.encode(data, width *img.getHeight());
+        for (int i = 0; i < words.length; ) {
+            int header = words[i];
+            int end = i +1 + (((header & RunLengthEncoder.RUN) != 0) ? 1 : header +1);
+            for (int j = i; j < end; j++) {
+                sb.append("0x");
+                appendHex(sb, words[j]);
+                if (j < words.length -1) {
+                    sb.append(", ");
+                }
+                if (j == end -1 || (j > i && (j - i) % width == 0)) {
+                    sb.append(System.lineSeparator());
+                }
+            }
+            i = end;
+        }
+        return words.length *2;
+    }
+    
+    /**
+     * Creates the source code for monochrome images (horizontally grouped, big endian).
+     * Bytes will be calculated horizontally; image width will be padded to a
+     * multiple of 8.
+     * @param img Color reduced image
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createMonoHSourceCode(BufferedImage img, StringBuilder sb) {
+        int bytesPerRow = (img.getWidth() +7) /8;
+        int length = bytesPerRow *img.getHeight();
+        var data = BufferPool.get().getByteBuffer(length);
+        packMonoH(img, data);
+        appendMonoBytes(sb, data, length, bytesPerRow, Mode.MONOH);
+        return length;
+    }
+    
+    /**
+     * Creates the source code for monochrome images (vertically grouped).
+     * Bytes will be calculated vertically; image height will be padded to a
+     * multiple of 8.
+     * @param img Color reduced image
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createMonoVSourceCode(BufferedImage img, StringBuilder sb) {
+        int width = img.getWidth();
+        int length = width *((img.getHeight() +7) /8);
+        var data = BufferPool.get().getByteBuffer(length);
+        packMonoV(img, data);
+        appendMonoBytes(sb, data, length, width, Mode.MONOV);
+        return length;
+    }
+    
+    /**
+     * Creates the source code for monochrome images with interleaved mask:
+     * each image byte is followed by the mask byte for the same pixels.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createInterleavedSourceCode(BufferedImage img, ConverterOptions options, StringBuilder sb) {
+        var mask = createMask(options);
+        var data = BufferPool.get().getByteBuffer(mask.length);
+        if (options.getMode() == Mode.MONOV) {
+            packMonoV(img, data);
+        } else {
+            packMonoH(img, data);
+        }
+        var interleaved = interleave(data, mask, mask.length);
+        appendMonoBytes(sb, interleaved, interleaved.length, getMonoBytesPerLine(options) *2, options.getMode());
+        return interleaved.length;
+    }
+    
+    /**
+     * Appends packed monochrome data: hex numbers for vertically grouped
+     * bytes, binary numbers for horizontally grouped bytes.
+     * @param sb StringBuilder
+     * @param data Packed data
+     * @param length Number of bytes to append
+     * @param bytesPerLine Number of bytes per line (one row or band)
+     * @param mode MONOV or MONOH
+     */
+    private static void appendMonoBytes(StringBuilder sb, byte[] data, int length, int bytesPerLine, Mode mode) {
+        for (int i = 0; i < length; i++) {
+            if (mode == Mode.MONOH) {
+                sb.append('B');
+                appendBinary(sb, data[i]);
+            } else {
+                sb.append("0x");
+                appendHex(sb, data[i] & 0xFF);
+            }
+            if (i < length -1) {
+                sb.append(", ");
+            }
+            if ((i +1) % bytesPerLine == 0) {
+                sb.append(System.lineSeparator());
+            }
+        }
+    }
+    
+    /**
+     * Creates the image data as changes to the previous frame (see
+     * FrameDelta): the number of spans, followed by offset, length and data
+     * of each span. Offsets and lengths count array elements; these numbers
+     * are 16 bit values, or 32 bit values if the frame has more than 65535
+     * elements. They are split into several literals (big endian) if the
+     * literals are smaller.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @param sb StringBuilder
+     * @return Number of bytes defined
+     */
+    private int createDeltaSourceCode(BufferedImage img, ConverterOptions options, StringBuilder sb) {
+        var mode = options.getMode();
+        var frame = packElements(img, options);
+        int elementBytes = mode.isMonochrome() ? 1 : getWordBytes(options);
+        int numberBytes = (frame.length > MAX_DELTA_NUMBER_16) ? 4 : 2;
+        int numberLength = Math.max(1, numberBytes /elementBytes);
+        int elementsPerLine = !mode.isMonochrome()
+            ? Math.max(1, getColorStride(img.getWidth(), options) /getWordBytes(options))
+            : getMonoBytesPerLine(options);
+        var spans = frameDelta.encode(frame, numberLength *2);
+        int count = spans.length /2;
+        
+        appendDeltaNumber(sb, count, numberLength, elementBytes);
+        sb.append(count > 0 ? ", // " : " // ");
+        if (count == 1 && spans[1] == frame.length) {
+            sb.append("keyframe");
+        } else {
+            sb.append(count).append(count == 1 ? " span" : " spans");
+        }
+        sb.append(System.lineSeparator());
+        
+        int elements = numberLength;
+        for (int s = 0; s < count; s++) {
+            int offset = spans[s *2];
+            int length = spans[s *2 +1];
+            appendDeltaNumber(sb, offset, numberLength, elementBytes);
+            sb.append(", ");
+            appendDeltaNumber(sb, length, numberLength, elementBytes);
+            sb.append(",").append(System.lineSeparator());
+            for (int i = 0; i < length; i++) {
+                if (mode == Mode.MONOH) {
+                    sb.append('B');
+                    appendBinary(sb, frame[offset + i]);
+                } else {
+                    sb.append("0x");
+                    appendHex(sb, frame[offset + i]);
+                }
+                if (i < length -1 || s < count -1) {
+                    sb.append(", ");
+                }
+                if ((i +1) % elementsPerLine == 0 || i == length -1) {
+                    sb.append(System.lineSeparator());
+                }
+            }
+            elements += numberLength *2 + length;
+        }
+        return !mode.isMonochrome() ? elements *getWordBytes(options) : elements;
+    }
+    
+    /**
+     * Appends a span count, offset or length as one literal or split into
+     * several literals, most significant first.
+     * @param sb StringBuilder
+     * @param value Value (16 or 32 bit)
+     * @param numberLength Number of literals per value (1, 2 or 4)
+     * @param elementBytes Number of bytes per literal
+     */
+    private static void appendDeltaNumber(StringBuilder sb, int value, int numberLength, int elementBytes) {
+        if (numberLength == 1) {
+            sb.append(value);
+            return;
+        }
+        int bits = elementBytes *8;
+        for (int i = numberLength -1; i >= 0; i--) {
+            sb.append((value >>> (i *bits)) & ((1 << bits) -1));
+            if (i > 0) sb.append(", ");
+        }
+    }
+    
+    /**
+     * Returns the packed image data with one array element per value: bytes
+     * in the monochrome modes, the literals of the word size otherwise.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @return Packed values
+     */
+    private static int[] packElements(BufferedImage img, ConverterOptions options) {
+        var mode = options.getMode();
+        if (!mode.isMonochrome() && (mode != Mode.RGB565 || !isDefaultLayout(options))) {
+            return toWords(packColorData(img, options), getWordBytes(options));
+        }
+        if (mode == Mode.RGB565) {
+            var data = ((DataBufferUShort)img.getRaster().getDataBuffer()).getData();
+            var result = new int[img.getWidth() *img.getHeight()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = data[i] & 0xFFFF;
+            }
+            return result;
+        }
+        var data = (mode == Mode.MONOV) ? packMonoV(img) : packMonoH(img);
+        var result = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = data[i] & 0xFF;
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of packed bytes of one row (MONOH) or one band of 8
+     * rows (MONOV).
+     * @param options Converter options
+     * @return Bytes per line
+     */
+    private int getMonoBytesPerLine(ConverterOptions options) {
+        int width = calculateTargetWidth(options);
+        return (options.getMode() == Mode.MONOH) ? width /8 : width;
+    }
+    
+    /**
+     * Creates the transparency mask of the scaled source image, packed like
+     * the image data: a bit is set for every pixel with an alpha value of at
+     * least MASK_ALPHA_THRESHOLD. Padding pixels are transparent.
+     * @param options Converter options (MONOV or MONOH)
+     * @return Packed mask
+     */
+    private byte[] createMask(ConverterOptions options) {
+        var image = getInputImage(options);
+        var pool = BufferPool.get();
+        var mask = pool.acquireImage(calculateTargetWidth(options), calculateTargetHeight(options), BufferedImage.TYPE_BYTE_BINARY);
+        try {
+            var raster = mask.getRaster();
+            var data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int stride = ((MultiPixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+            int width = image.getWidth();
+            int height = image.getHeight();
+            boolean opaque = !image.getColorModel().hasAlpha();
+            var row = pool.getRowBuffer(width);
+            for (int y = 0; y < height; y++) {
+                if (!opaque) image.getRGB(0, y, width, 1, row, 0, width);
+                int offset = y *stride;
+                for (int x = 0; x < width; x++) {
+                    if (opaque || (row[x] >>> 24) >= MASK_ALPHA_THRESHOLD) {
+                        data[offset + (x >> 3)] |= 0x80 >> (x & 7);
+                    }
+                }
+            }
+            return (options.getMode() == Mode.MONOV) ? packMonoV(mask) : packMonoH(mask);
+        } finally {
+            pool.releaseImage(mask);
+        }
+    }
+    
+    /**
+     * Interleaves image and mask bytes.
+     * @param data Packed image data
+     * @param mask Packed mask
+     * @param length Number of bytes of image and mask
+     * @return Image byte, mask byte, image byte, ...
+     */
+    private static byte[] interleave(byte[] data, byte[] mask, int length) {
+        var result = new byte[length *2];
+        for (int i = 0; i < length; i++) {
+            result[i *2] = data[i];
+            result[i *2 +1] = mask[i];
+        }
+        return result;
+    }
+    
+    /**
+     * Packs the pixels of a color reduced image into a byte stream in the
+     * byte order of the options (see ColorFormats for the formats besides
+     * RGB565). Each row is padded with zero bytes to the row alignment, the
+     * whole stream to the word size.
+     * @param img Color reduced image
+     * @param options Converter options
+     * @return Packed image data
+     */
+    private static byte[] packColorData(BufferedImage img, ConverterOptions options) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int stride = getColorStride(width, options);
+        int wordBytes = getWordBytes(options);
+        var result = new byte[(stride *height + wordBytes -1) /wordBytes *wordBytes];
+        if (options.getMode() != Mode.RGB565) {
+            var pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                ColorFormats.packRow(pixels, y *width, width, options.getMode(), options.getByteOrder(), result, y *stride);
+            }
+            return result;
+        }
+        var data = ((DataBufferUShort)img.getRaster().getDataBuffer()).getData();
+        int high = (options.getByteOrder() == ByteOrder.BIG) ? 0 : 1;
+        for (int y = 0; y < height; y++) {
+            int in = y *width;
+            int out = y *stride;
+            for (int x = 0; x < width; x++, out += 2) {
+                int pixel = data[in + x];
+                result[out + high] = (byte)(pixel >> 8);
+                result[out + 1 - high] = (byte)pixel;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Packs the pixels of a color reduced RGB565 image into RLE compressed
+     * data (big endian words, see RunLengthEncoder).
+     * @param img Color reduced image
+     * @return Packed image data
+     */
+    private static byte[] packRunLength(BufferedImage img) {
+        var data = ((DataBufferUShort)img.getRaster().getDataBuffer()).getData();
+        var words = RunLengthEncoder.encode(data, img.getWidth() *img.getHeight());
+        var result = new byte[words.length *2];
+        for (int i = 0; i < words.length; i++) {
+            result[i *2] = (byte)(words[i] >> 8);
+            result[i *2 +1] = (byte)words[i];
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of bytes of one row of color data, including the
+     * padding to the row alignment.
+     * @param width Image width
+     * @param options Converter options
+     * @return Bytes per row
+     */
+    private static int getColorStride(int width, ConverterOptions options) {
+        int alignment = options.getRowAlignment();
+        return (ColorFormats.getRowBytes(options.getMode(), width) + alignment -1) /alignment *alignment;
+    }
+    
+    /**
+     * Returns the number of bytes per literal in the color modes. Without a
+     * word size, RGB565 uses one literal per pixel and the other formats one
+     * literal per byte.
+     * @param options Converter options
+     * @return 1, 2 or 4
+     */
+    private static int getWordBytes(ConverterOptions options) {
+        if (options.getWordSize() > 0) return options.getWordSize() /8;
+        return (options.getMode() == Mode.RGB565) ? 2 : 1;
+    }
+    
+    /**
+     * Checks if the color data is written in its default layout: one literal
+     * per pixel, high byte first, rows not padded.
+     * @param options Converter options
+     * @return true for the default layout
+     */
+    private static boolean isDefaultLayout(ConverterOptions options) {
+        return options.getByteOrder() == ByteOrder.BIG && getWordBytes(options) == 2 && options.getRowAlignment() == 1;
+    }
+    
+    /**
+     * Combines the packed color data into literals of the word size; the
+     * first byte of a literal is its most significant one.
+     * @param data Packed color data (see packColorData())
+     * @param wordBytes Bytes per literal
+     * @return Literal values (unsigned)
+     */
+    private static int[] toWords(byte[] data, int wordBytes) {
+        var result = new int[data.length /wordBytes];
+        for (int i = 0, in = 0; i < result.length; i++) {
+            int value = 0;
+            for (int b = 0; b < wordBytes; b++, in++) {
+                value = (value << 8) | (data[in] & 0xFF);
+            }
+            result[i] = value;
+        }
+        return result;
+    }
+    
+    /**
+     * Packs a monochrome image horizontally.
+     * @param img Color reduced image
+     * @return Packed image data
+     */
+    private static byte[] packMonoH(BufferedImage img) {
+        var result = new byte[(img.getWidth() +7) /8 *img.getHeight()];
+        packMonoH(img, result);
+        return result;
+    }
+    
+    /**
+     * Packs a monochrome image horizontally into the given array. The raster
+     * of a TYPE_BYTE_BINARY image already stores 8 pixels per byte with the
+     * leftmost pixel in the most significant bit, so its rows are copied
+     * directly; only the padding bits at the end of each row are cleared.
+     * @param img Color reduced image (TYPE_BYTE_BINARY)
+     * @param result Array for at least ((width +7) /8) *height bytes
+     */
+    private static void packMonoH(BufferedImage img, byte[] result) {
+        var raster = img.getRaster();
+        var data = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int bytesPerRow = (width +7) /8;
+        int padding = bytesPerRow *8 -width;
+        
+        if (stride == bytesPerRow) {
+            System.arraycopy(data, 0, result, 0, bytesPerRow *height);
+        } else {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(data, y *stride, result, y *bytesPerRow, bytesPerRow);
+            }
+        }
+        if (padding > 0) {
+            byte mask = (byte)(0xFF << padding);
+            for (int i = bytesPerRow -1; i < bytesPerRow *height; i += bytesPerRow) {
+                result[i] &= mask;
+            }
+        }
+    }
+    
+    /**
+     * Packs a monochrome image vertically: each byte contains 8 pixels of one
+     * column, the topmost pixel in the least significant bit.
+     * @param img Color reduced image
+     * @return Packed image data
+     */
+    private static byte[] packMonoV(BufferedImage img) {
+        var result = new byte[img.getWidth() *((img.getHeight() +7) /8)];
+        packMonoV(img, result);
+        return result;
+    }
+    
+    /**
+     * Packs a monochrome image vertically into the given array. Each raster
+     * byte holds 8 horizontal pixels, so 8 raster bytes of consecutive rows
+     * form an 8x8 bit matrix; transposing it yields the 8 vertical bytes of
+     * these columns at once.
+     * @param img Color reduced image (TYPE_BYTE_BINARY)
+     * @param result Array for at least width *((height +7) /8) bytes
+     */
+    private static void packMonoV(BufferedImage img, byte[] result) {
+        var raster = img.getRaster();
+        var data = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        
+        for (int y = 0, out = 0; y < height; y += 8, out += width) {
+            int rows = Math.min(8, height -y);
+            for (int column = 0; column < width; column += 8) {
+                // Row r of the band goes into byte r, pixel x into bit 7 -x
+                long matrix = 0;
+                int offset = y *stride + (column >> 3);
+                for (int r = 0; r < rows; r++, offset += stride) {
+                    matrix |= (data[offset] & 0xFFL) << (r *8);
+                }
+                matrix = transpose8x8(matrix);
+                
+                // Now byte 7 -x contains column x, row r in bit r
+                int count = Math.min(8, width -column);
+                for (int x = 0; x < count; x++) {
+                    result[out + column + x] = (byte)(matrix >>> ((7 -x) *8));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Transposes an 8x8 bit matrix stored in a long (bit j of byte i is
+     * element i, j) by swapping 1x1, 2x2 and 4x4 blocks.
+     * @param x Bit matrix
+     * @return Transposed bit matrix
+     */
+    private static long transpose8x8(long x) {
+        long t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+        x ^= t ^ (t << 7);
+        t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+        x ^= t ^ (t << 14);
+        t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+        x ^= t ^ (t << 28);
+        return x;
     }
     
     /**
@@ -17,112 +17,841 @@
  */
 package de.ubergeek.imageconverter;
 
+import de.ubergeek.imageconverter.Converter.ByteOrder;
+import de.ubergeek.imageconverter.Converter.Compression;
+import de.ubergeek.imageconverter.Converter.MaskFormat;
 import de.ubergeek.imageconverter.Converter.Mode;
+import de.ubergeek.imageconverter.Converter.ResizeFilter;
 import java.awt.Color;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Pattern;
 
 /**
- * Simple pojo for all option the ImageConverter knows.
+ * Immutable set of all options the ImageConverter knows.
+ * Instances are created with a Builder and can safely be shared between
+ * threads or used as keys (equals() and hashCode() compare all options).
+ * toString() returns a canonical form which can be parsed again by parse().
  * @author André Gewert <agewert@ubergeek.de>
  */
-public class ConverterOptions {
-    
+public final class ConverterOptions {
+
     /**
      * Option presets for some typical targets.
      */
     public enum Preset {
         /** Monochome images for Arduboy (uncompressed) */
         arduboy,
-        
+
         /** CircuitOS (Nibble, Ringo etc.) color images (RGB565) */
         cos,
-        
+
         /** CircuitOS (Nibble, Ringo etc.) monochrome images */
         cosmono
     };
 
+    /**
+     * Option names used in the canonical form (same as the long command line
+     * options).
+     */
+    public final static String BACKGROUND_COLOR = "backgroundcolor";
+    public final static String MODE = "mode";
+    public final static String VARIABLE_NAME = "varname";
+    public final static String VARIABLE_TYPE = "vartype";
+    public final static String OUTPUT_FILENAME = "outputfile";
+    public final static String INVERT_COLORS = "invertcolors";
+    public final static String INCLUDE_DIMENSIONS = "includedimensions";
+    public final static String CREATE_ASCII_ART = "ascii";
+    public final static String ASCII_ART_WIDTH = "asciiwidth";
+    public final static String RESIZE_WIDTH = "resizewidth";
+    public final static String RESIZE_HEIGHT = "resizeheight";
+    public final static String RESIZE_FILTER = "resizefilter";
+    public final static String MASK_FORMAT = "mask";
+    public final static String TRIM = "trim";
+    public final static String BYTE_ORDER = "byteorder";
+    public final static String WORD_SIZE = "wordsize";
+    public final static String ROW_ALIGNMENT = "rowalign";
+    public final static String COMPRESSION = "compression";
+
+    /**
+     * Valid variable names; the same characters are kept when deriving a
+     * variable name from a file name.
+     */
+    private final static Pattern VARIABLE_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9\\-_]*");
+
+    /**
+     * Options with default values.
+     */
+    public final static ConverterOptions DEFAULT = new Builder().build();
+
     // <editor-fold desc="Properties">
 
+    private final Color backgroundColor;
+    private final Mode mode;
+    private final String variableName;
+    private final String variableType;
+    private final String outputFilename;
+    private final boolean invertColors;
+    private final boolean includeDimensions;
+    private final boolean createAsciiArt;
+    private final int asciiArtWidth;
+    private final int resizeWidth;
+    private final int resizeHeight;
+    private final ResizeFilter resizeFilter;
+    private final MaskFormat maskFormat;
+    private final boolean trim;
+    private final ByteOrder byteOrder;
+    private final int wordSize;
+    private final int rowAlignment;
+    private final Compression compression;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    private ConverterOptions(Builder builder) {
+        backgroundColor = builder.backgroundColor;
+        mode = builder.mode;
+        variableName = builder.variableName;
+        variableType = builder.variableType;
+        outputFilename = builder.outputFilename;
+        invertColors = builder.invertColors;
+        includeDimensions = builder.includeDimensions;
+        createAsciiArt = builder.createAsciiArt;
+        asciiArtWidth = builder.asciiArtWidth;
+        resizeWidth = builder.resizeWidth;
+        resizeHeight = builder.resizeHeight;
+        resizeFilter = builder.resizeFilter;
+        maskFormat = builder.maskFormat;
+        trim = builder.trim;
+        byteOrder = builder.byteOrder;
+        wordSize = builder.wordSize;
+        rowAlignment = builder.rowAlignment;
+        compression = builder.compression;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Accessors">
+
     /**
      * The background color the source image should be drawn on.
      * -c / --backgroundcolor
+     * @return Background color
      */
-    public Color backgroundColor = Color.BLACK;
+    public Color getBackgroundColor() {
+        return backgroundColor;
+    }
 
     /**
      * Conversion mode.
      * -m / --mode
+     * @return Conversion mode
      */
-    public Mode mode = Mode.RGB565;
+    public Mode getMode() {
+        return mode;
+    }
 
     /**
-     * The variable name that should be used in generated source code.
+     * The variable name that should be used in generated source code. If
+     * empty, the variable name should be derived from the file name.
      * -v / --varname
+     * @return Variable name
      */
-    public String variableName = "";
-    
+    public String getVariableName() {
+        return variableName;
+    }
+
     /**
-     * The variable type that should be used in generated source code.
+     * The variable type that should be used in generated source code. If no
+     * type has been set, it matches the size of the literals: 8 bit for the
+     * byte packed color modes, 16 bit for RGB565 and the monochrome modes,
+     * or the word size if one is given.
      * -t / --vartype
+     * @return Variable type
      */
-    public String variableType = "const unsigned short PROGMEM";
-    
+    public String getVariableType() {
+        return (variableType != null) ? variableType : getDefaultVariableType(mode, wordSize);
+    }
+
     /**
-     * Name of the output file to be written.
+     * Name of the output file to be written. If empty, the name should be
+     * derived from the input file name.
      * -o / --outputfile
+     * @return Output file name
      */
-    public String outputFilename = "";
-    
+    public String getOutputFilename() {
+        return outputFilename;
+    }
+
     /**
      * Indicates if the colors of the source image should be inverted after
      * color reduction.
      * -i / --invertcolors
+     * @return true if colors should be inverted
      */
-    public boolean invertColors = false;
-    
+    public boolean isInvertColors() {
+        return invertColors;
+    }
+
     /**
      * Indicates if the generated image array should include the image's
      * dimension at the beginning.
      * -d / --includedimensions
+     * @return true if the dimensions should be included
      */
-    public boolean includeDimensions = false;
-    
+    public boolean isIncludeDimensions() {
+        return includeDimensions;
+    }
+
     /**
      * Indicates that an ascii representation should be generated.
      * -a / --ascii
+     * @return true if ascii art should be generated
+     */
+    public boolean isCreateAsciiArt() {
+        return createAsciiArt;
+    }
+
+    /**
+     * Maximum width of the ascii representation in characters. Wider images
+     * are scaled down by an integer factor (in both directions); 0 means one
+     * character per pixel.
+     * --asciiwidth
+     * @return Maximum width or 0
+     */
+    public int getAsciiArtWidth() {
+        return asciiArtWidth;
+    }
+
+    /**
+     * Width the source image should be scaled to before color reduction.
+     * 0 keeps the width, or keeps the aspect ratio if a height is given.
+     * --resizewidth
+     * @return Target width or 0
+     */
+    public int getResizeWidth() {
+        return resizeWidth;
+    }
+
+    /**
+     * Height the source image should be scaled to before color reduction.
+     * 0 keeps the height, or keeps the aspect ratio if a width is given.
+     * --resizeheight
+     * @return Target height or 0
+     */
+    public int getResizeHeight() {
+        return resizeHeight;
+    }
+
+    /**
+     * Filter used when scaling the source image.
+     * --resizefilter
+     * @return Resize filter
+     */
+    public ResizeFilter getResizeFilter() {
+        return resizeFilter;
+    }
+
+    /**
+     * Output format of the transparency mask (monochrome modes only).
+     * --mask
+     * @return Mask format
+     */
+    public MaskFormat getMaskFormat() {
+        return maskFormat;
+    }
+
+    /**
+     * Indicates that transparent or background colored borders should be
+     * removed; the position of the remaining part is written as offset.
+     * --trim
+     * @return true if the image should be trimmed
+     */
+    public boolean isTrim() {
+        return trim;
+    }
+
+    /**
+     * Byte order of the pixels in the color modes.
+     * --byteorder
+     * @return Byte order
+     */
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Size of the literals in bits (8, 16 or 32) the color data is split
+     * into; 0 uses one literal per pixel.
+     * --wordsize
+     * @return Word size or 0
      */
-    public boolean createAsciiArt = true;
+    public int getWordSize() {
+        return wordSize;
+    }
+
+    /**
+     * Each row of color data is padded to a multiple of this number of
+     * bytes.
+     * --rowalign
+     * @return Row alignment in bytes
+     */
+    public int getRowAlignment() {
+        return rowAlignment;
+    }
+
+    /**
+     * Compression of the image data (RGB565 only).
+     * --compression
+     * @return Compression
+     */
+    public Compression getCompression() {
+        return compression;
+    }
 
     // </editor-fold>
-    
-    
+
+
     // <editor-fold desc="Public methods">
-    
-    public void applyPreset(Preset preset) {
-        switch (preset) {
-            
-            case arduboy -> {
-                backgroundColor = Color.BLACK;
-                mode = Mode.MONOV;
-                variableType = "const uint8_t PROGMEM";
-                includeDimensions = false;
-            }
-            
-            case cos -> {
-                backgroundColor = Color.BLACK;
-                mode = Mode.RGB565;
-                variableType = "const unsigned short PROGMEM";
-                includeDimensions = false;
-            }
-            
-            case cosmono -> {
-                backgroundColor = Color.BLACK;
-                mode = Mode.MONOH;
-                variableType = "const byte PROGMEM";
-                includeDimensions = false;
-            }
-        }
-    }
-    
+
+    /**
+     * Creates a builder with default values.
+     * @return Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a builder initialized with these options.
+     * @return Builder
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Parses options from their canonical form (see toString()). Options that
+     * are missing keep their default values.
+     * @param canonical Canonical form
+     * @return Parsed options
+     * @throws IllegalArgumentException If the string contains unknown or invalid options
+     */
+    public static ConverterOptions parse(String canonical) {
+        var builder = new Builder();
+        var value = new StringBuilder();
+        String key = null;
+        for (int i = 0; i <= canonical.length(); i++) {
+            char c = (i < canonical.length()) ? canonical.charAt(i) : ';';
+            if (c == '\\' && i + 1 < canonical.length()) {
+                value.append(canonical.charAt(++i));
+            } else if (c == '=' && key == null) {
+                key = value.toString();
+                value.setLength(0);
+            } else if (c == ';') {
+                if (key != null) {
+                    builder.set(key, value.toString());
+                } else if (value.length() > 0) {
+                    throw new IllegalArgumentException("Missing value for option " + value);
+                }
+                key = null;
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof ConverterOptions)) return false;
+        var other = (ConverterOptions)obj;
+        return backgroundColor.getRGB() == other.backgroundColor.getRGB()
+            && mode == other.mode
+            && variableName.equals(other.variableName)
+            && Objects.equals(variableType, other.variableType)
+            && outputFilename.equals(other.outputFilename)
+            && invertColors == other.invertColors
+            && includeDimensions == other.includeDimensions
+            && createAsciiArt == other.createAsciiArt
+            && asciiArtWidth == other.asciiArtWidth
+            && resizeWidth == other.resizeWidth
+            && resizeHeight == other.resizeHeight
+            && resizeFilter == other.resizeFilter
+            && maskFormat == other.maskFormat
+            && trim == other.trim
+            && byteOrder == other.byteOrder
+            && wordSize == other.wordSize
+            && rowAlignment == other.rowAlignment
+            && compression == other.compression;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+            backgroundColor.getRGB(), mode, variableName, variableType, outputFilename,
+            invertColors, includeDimensions, createAsciiArt, asciiArtWidth,
+            resizeWidth, resizeHeight, resizeFilter, maskFormat, trim,
+            byteOrder, wordSize, rowAlignment, compression
+        );
+    }
+
+    /**
+     * Returns the canonical form of these options: all options in
+     * alphabetical order as key=value pairs separated by semicolons, with
+     * backslashes, equal signs and semicolons in values escaped by a
+     * backslash. The variable type is left out if it has not been set.
+     * Equal options always have the same canonical form.
+     * @return Canonical form
+     */
+    @Override
+    public String toString() {
+        var sb = new StringBuilder();
+        appendOption(sb, CREATE_ASCII_ART, Boolean.toString(createAsciiArt));
+        appendOption(sb, ASCII_ART_WIDTH, Integer.toString(asciiArtWidth));
+        appendOption(sb, BACKGROUND_COLOR, formatColor(backgroundColor));
+        appendOption(sb, BYTE_ORDER, byteOrder.name().toLowerCase(Locale.ROOT));
+        appendOption(sb, COMPRESSION, compression.name().toLowerCase(Locale.ROOT));
+        appendOption(sb, INCLUDE_DIMENSIONS, Boolean.toString(includeDimensions));
+        appendOption(sb, INVERT_COLORS, Boolean.toString(invertColors));
+        appendOption(sb, MASK_FORMAT, maskFormat.name().toLowerCase(Locale.ROOT));
+        appendOption(sb, MODE, mode.name().toLowerCase(Locale.ROOT));
+        appendOption(sb, OUTPUT_FILENAME, outputFilename);
+        appendOption(sb, RESIZE_FILTER, resizeFilter.name().toLowerCase(Locale.ROOT));
+        appendOption(sb, RESIZE_HEIGHT, Integer.toString(resizeHeight));
+        appendOption(sb, RESIZE_WIDTH, Integer.toString(resizeWidth));
+        appendOption(sb, ROW_ALIGNMENT, Integer.toString(rowAlignment));
+        appendOption(sb, TRIM, Boolean.toString(trim));
+        appendOption(sb, VARIABLE_NAME, variableName);
+        if (variableType != null) appendOption(sb, VARIABLE_TYPE, variableType);
+        appendOption(sb, WORD_SIZE, Integer.toString(wordSize));
+        return sb.toString();
+    }
+
     // </editor-fold>
-    
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Returns the variable type used if none has been set.
+     * @param mode Conversion mode
+     * @param wordSize Word size or 0
+     * @return Variable type matching the size of the literals
+     */
+    private static String getDefaultVariableType(Mode mode, int wordSize) {
+        int bits = wordSize;
+        if (bits == 0) {
+            bits = switch (mode) {
+                case RGB332, RGB444, RGB888, GRAY4, GRAY2 -> 8;
+                default -> 16;
+            };
+        }
+        return switch (bits) {
+            case 8 -> "const uint8_t PROGMEM";
+            case 32 -> "const uint32_t PROGMEM";
+            default -> "const unsigned short PROGMEM";
+        };
+    }
+
+    private static void appendOption(StringBuilder sb, String key, String value) {
+        if (sb.length() > 0) sb.append(';');
+        sb.append(key).append('=');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '=' || c == ';') sb.append('\\');
+            sb.append(c);
+        }
+    }
+
+    private static String formatColor(Color color) {
+        if (color.getAlpha() == 0xff) return String.format("#%06x", color.getRGB() & 0xFFFFFF);
+        return String.format("#%08x", color.getRGB());
+    }
+
+    // </editor-fold>
+
+
+    /**
+     * Builder for ConverterOptions. Setters throw an IllegalArgumentException
+     * for invalid values, build() for invalid combinations.
+     */
+    public static final class Builder {
+
+        private Color backgroundColor = Color.BLACK;
+        private Mode mode = Mode.RGB565;
+        private String variableName = "";
+        private String variableType = null;
+        private String outputFilename = "";
+        private boolean invertColors = false;
+        private boolean includeDimensions = false;
+        private boolean createAsciiArt = true;
+        private int asciiArtWidth = 0;
+        private int resizeWidth = 0;
+        private int resizeHeight = 0;
+        private ResizeFilter resizeFilter = ResizeFilter.LANCZOS;
+        private MaskFormat maskFormat = MaskFormat.NONE;
+        private boolean trim = false;
+        private ByteOrder byteOrder = ByteOrder.BIG;
+        private int wordSize = 0;
+        private int rowAlignment = 1;
+        private Compression compression = Compression.NONE;
+
+        private Builder() {
+        }
+
+        private Builder(ConverterOptions options) {
+            backgroundColor = options.backgroundColor;
+            mode = options.mode;
+            variableName = options.variableName;
+            variableType = options.variableType;
+            outputFilename = options.outputFilename;
+            invertColors = options.invertColors;
+            includeDimensions = options.includeDimensions;
+            createAsciiArt = options.createAsciiArt;
+            asciiArtWidth = options.asciiArtWidth;
+            resizeWidth = options.resizeWidth;
+            resizeHeight = options.resizeHeight;
+            resizeFilter = options.resizeFilter;
+            maskFormat = options.maskFormat;
+            trim = options.trim;
+            byteOrder = options.byteOrder;
+            wordSize = options.wordSize;
+            rowAlignment = options.rowAlignment;
+            compression = options.compression;
+        }
+
+        public Builder setBackgroundColor(Color backgroundColor) {
+            this.backgroundColor = Objects.requireNonNull(backgroundColor, "backgroundColor");
+            return this;
+        }
+
+        public Builder setMode(Mode mode) {
+            this.mode = Objects.requireNonNull(mode, "mode");
+            return this;
+        }
+
+        public Builder setVariableName(String variableName) {
+            if (variableName == null) variableName = "";
+            if (!VARIABLE_NAME_PATTERN.matcher(variableName).matches()) {
+                throw new IllegalArgumentException("Invalid variable name " + variableName);
+            }
+            this.variableName = variableName;
+            return this;
+        }
+
+        public Builder setVariableType(String variableType) {
+            if (variableType == null || variableType.isBlank() || variableType.indexOf('\n') >= 0 || variableType.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Invalid variable type " + variableType);
+            }
+            this.variableType = variableType;
+            return this;
+        }
+
+        public Builder setOutputFilename(String outputFilename) {
+            this.outputFilename = (outputFilename == null) ? "" : outputFilename;
+            return this;
+        }
+
+        public Builder setInvertColors(boolean invertColors) {
+            this.invertColors = invertColors;
+            return this;
+        }
+
+        public Builder setIncludeDimensions(boolean includeDimensions) {
+            this.includeDimensions = includeDimensions;
+            return this;
+        }
+
+        public Builder setCreateAsciiArt(boolean createAsciiArt) {
+            this.createAsciiArt = createAsciiArt;
+            return this;
+        }
+
+        public Builder setAsciiArtWidth(int asciiArtWidth) {
+            if (asciiArtWidth < 0) {
+                throw new IllegalArgumentException("Invalid ascii art width " + asciiArtWidth);
+            }
+            this.asciiArtWidth = asciiArtWidth;
+            return this;
+        }
+
+        public Builder setResizeWidth(int resizeWidth) {
+            if (resizeWidth < 0) {
+                throw new IllegalArgumentException("Invalid resize width " + resizeWidth);
+            }
+            this.resizeWidth = resizeWidth;
+            return this;
+        }
+
+        public Builder setResizeHeight(int resizeHeight) {
+            if (resizeHeight < 0) {
+                throw new IllegalArgumentException("Invalid resize height " + resizeHeight);
+            }
+            this.resizeHeight = resizeHeight;
+            return this;
+        }
+
+        public Builder setResizeFilter(ResizeFilter resizeFilter) {
+            this.resizeFilter = Objects.requireNonNull(resizeFilter, "resizeFilter");
+            return this;
+        }
+
+        public Builder setMaskFormat(MaskFormat maskFormat) {
+            this.maskFormat = Objects.requireNonNull(maskFormat, "maskFormat");
+            return this;
+        }
+
+        public Builder setTrim(boolean trim) {
+            this.trim = trim;
+            return this;
+        }
+
+        public Builder setByteOrder(ByteOrder byteOrder) {
+            this.byteOrder = Objects.requireNonNull(byteOrder, "byteOrder");
+            return this;
+        }
+
+        public Builder setWordSize(int wordSize) {
+            if (wordSize != 0 && wordSize != 8 && wordSize != 16 && wordSize != 32) {
+                throw new IllegalArgumentException("Invalid word size " + wordSize);
+            }
+            this.wordSize = wordSize;
+            return this;
+        }
+
+        public Builder setRowAlignment(int rowAlignment) {
+            if (rowAlignment < 1) {
+                throw new IllegalArgumentException("Invalid row alignment " + rowAlignment);
+            }
+            this.rowAlignment = rowAlignment;
+            return this;
+        }
+
+        public Builder setCompression(Compression compression) {
+            this.compression = Objects.requireNonNull(compression, "compression");
+            return this;
+        }
+
+        /**
+         * Sets the option with the given name (as used in the canonical
+         * form) from its string representation.
+         * @param key Option name
+         * @param value Option value
+         * @return This builder
+         * @throws IllegalArgumentException If the option is unknown or the value is invalid
+         */
+        public Builder set(String key, String value) {
+            switch (key) {
+                case BACKGROUND_COLOR -> setBackgroundColor(parseColor(value));
+                case MODE -> setMode(parseMode(value));
+                case VARIABLE_NAME -> setVariableName(value);
+                case VARIABLE_TYPE -> setVariableType(value);
+                case OUTPUT_FILENAME -> setOutputFilename(value);
+                case INVERT_COLORS -> setInvertColors(parseBoolean(value));
+                case INCLUDE_DIMENSIONS -> setIncludeDimensions(parseBoolean(value));
+                case CREATE_ASCII_ART -> setCreateAsciiArt(parseBoolean(value));
+                case ASCII_ART_WIDTH -> setAsciiArtWidth(parseInt(key, value));
+                case RESIZE_WIDTH -> setResizeWidth(parseInt(key, value));
+                case RESIZE_HEIGHT -> setResizeHeight(parseInt(key, value));
+                case RESIZE_FILTER -> setResizeFilter(parseResizeFilter(value));
+                case MASK_FORMAT -> setMaskFormat(parseMaskFormat(value));
+                case TRIM -> setTrim(parseBoolean(value));
+                case BYTE_ORDER -> setByteOrder(parseByteOrder(value));
+                case WORD_SIZE -> setWordSize(parseInt(key, value));
+                case ROW_ALIGNMENT -> setRowAlignment(parseInt(key, value));
+                case COMPRESSION -> setCompression(parseCompression(value));
+                default -> throw new IllegalArgumentException("Unknown option " + key);
+            }
+            return this;
+        }
+
+        /**
+         * Applies the options of a preset; other options are kept.
+         * @param preset Preset
+         * @return This builder
+         */
+        public Builder applyPreset(Preset preset) {
+            switch (preset) {
+
+                case arduboy -> {
+                    backgroundColor = Color.BLACK;
+                    mode = Mode.MONOV;
+                    variableType = "const uint8_t PROGMEM";
+                    includeDimensions = false;
+                }
+
+                case cos -> {
+                    backgroundColor = Color.BLACK;
+                    mode = Mode.RGB565;
+                    variableType = "const unsigned short PROGMEM";
+                    includeDimensions = false;
+                }
+
+                case cosmono -> {
+                    backgroundColor = Color.BLACK;
+                    mode = Mode.MONOH;
+                    variableType = "const byte PROGMEM";
+                    includeDimensions = false;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Creates the options.
+         * @return Immutable options
+         */
+        public ConverterOptions build() {
+            if (maskFormat != MaskFormat.NONE && !mode.isMonochrome()) {
+                throw new IllegalArgumentException("Masks are only supported for monochrome modes");
+            }
+            if (mode.isMonochrome() && (byteOrder != ByteOrder.BIG || wordSize != 0 || rowAlignment != 1)) {
+                throw new IllegalArgumentException("Byte order, word size and row alignment are only supported for color modes");
+            }
+            if (compression != Compression.NONE && (mode != Mode.RGB565 || byteOrder != ByteOrder.BIG || (wordSize != 0 && wordSize != 16) || rowAlignment != 1)) {
+                throw new IllegalArgumentException("Compression is only supported for RGB565 in its default layout");
+            }
+            return new ConverterOptions(this);
+        }
+
+        /**
+         * Parses a conversion mode as given on the command line.
+         * @param value rgb565, rgb332, rgb444, rgb888, gray4, gray2, mono, monov
+         * or monoh (case insensitive)
+         * @return Conversion mode
+         */
+        public static Mode parseMode(String value) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "rgb565":
+                    return Mode.RGB565;
+                case "rgb332":
+                    return Mode.RGB332;
+                case "rgb444":
+                    return Mode.RGB444;
+                case "rgb888":
+                    return Mode.RGB888;
+                case "gray4":
+                case "grey4":
+                    return Mode.GRAY4;
+                case "gray2":
+                case "grey2":
+                    return Mode.GRAY2;
+                case "mono":
+                case "monov":
+                    return Mode.MONOV;
+                case "monoh":
+                    return Mode.MONOH;
+                default:
+                    throw new IllegalArgumentException("Unknown mode " + value);
+            }
+        }
+
+        /**
+         * Parses a resize filter as given on the command line.
+         * @param value nearest, box or lanczos (case insensitive)
+         * @return Resize filter
+         */
+        public static ResizeFilter parseResizeFilter(String value) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "nearest":
+                    return ResizeFilter.NEAREST;
+                case "box":
+                    return ResizeFilter.BOX;
+                case "lanczos":
+                    return ResizeFilter.LANCZOS;
+                default:
+                    throw new IllegalArgumentException("Unknown resize filter " + value);
+            }
+        }
+
+        /**
+         * Parses a mask format as given on the command line.
+         * @param value none, separate or interleaved (case insensitive)
+         * @return Mask format
+         */
+        public static MaskFormat parseMaskFormat(String value) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "none":
+                    return MaskFormat.NONE;
+                case "separate":
+                    return MaskFormat.SEPARATE;
+                case "interleaved":
+                    return MaskFormat.INTERLEAVED;
+                default:
+                    throw new IllegalArgumentException("Unknown mask format " + value);
+            }
+        }
+
+        /**
+         * Parses a byte order as given on the command line.
+         * @param value big, be, little or le (case insensitive)
+         * @return Byte order
+         */
+        public static ByteOrder parseByteOrder(String value) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "big":
+                case "be":
+                    return ByteOrder.BIG;
+                case "little":
+                case "le":
+                    return ByteOrder.LITTLE;
+                default:
+                    throw new IllegalArgumentException("Unknown byte order " + value);
+            }
+        }
+
+        /**
+         * Parses a compression as given on the command line.
+         * @param value none or rle (case insensitive)
+         * @return Compression
+         */
+        public static Compression parseCompression(String value) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "none":
+                    return Compression.NONE;
+                case "rle":
+                    return Compression.RLE;
+                default:
+                    throw new IllegalArgumentException("Unknown compression " + value);
+            }
+        }
+
+        /**
+         * Parses a color code like #rrggbb (see Color.decode()) or #aarrggbb.
+         * @param value Color code
+         * @return Color
+         */
+        public static Color parseColor(String value) {
+            if (value.startsWith("#") && value.length() == 9) {
+                return new Color((int)Long.parseLong(value.substring(1), 16), true);
+            }
+            return Color.decode(value);
+        }
+
+        private static boolean parseBoolean(String value) {
+            switch (value) {
+                case "true":
+                    return true;
+                case "false":
+                    return false;
+                default:
+                    throw new IllegalArgumentException("Invalid boolean value " + value);
+            }
+        }
+
+        private static int parseInt(String key, String value) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid number for option " + key + ": " + value);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Color reduction without Java2D.
+ * Reads the rows of the source raster directly, blends them against the
+ * background color using integer math and packs the result into the
+ * TYPE_USHORT_565_RGB, TYPE_BYTE_BINARY or TYPE_INT_RGB target in one pass.
+ * Indexed images are reduced per palette entry instead of per pixel.
+ * The blending replicates Java2D's SrcOver loops (including its 8 bit
+ * multiplication table), so the result is bit-identical to drawing the
+ * source image via Graphics2D.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class FastReducer {
+
+    /**
+     * Maps a color reduced to 5 bits per channel (rrrrrgggggbbbbb) to the
+     * monochrome target pixel. Java2D uses an inverse color map of the same
+     * resolution for 1 bit targets; it is sampled once so the mapping is
+     * exactly the same.
+     */
+    private static volatile boolean[] monochromeMap;
+
+    private FastReducer() {
+    }
+
+    /**
+     * Checks if the given source image can be reduced without Java2D.
+     * @param source Source image
+     * @param backgroundColor Background color
+     * @return true if reduce() can be used for the given image
+     */
+    static boolean supports(BufferedImage source, Color backgroundColor) {
+        if (backgroundColor.getAlpha() != 0xff) return false;
+        switch (source.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return true;
+            case BufferedImage.TYPE_BYTE_BINARY:
+                // Rows must start at a byte boundary
+                var sampleModel = (MultiPixelPackedSampleModel)source.getRaster().getSampleModel();
+                return sampleModel.getBitOffset(-source.getRaster().getSampleModelTranslateX()) == 0;
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Draws the source image on the background color into the target image.
+     * The target must be a newly created image of type TYPE_USHORT_565_RGB,
+     * TYPE_BYTE_BINARY or TYPE_INT_RGB that is at least as large as the
+     * source image.
+     * @param source Source image (see supports())
+     * @param target Target image
+     * @param backgroundColor Background color
+     * @param invert Set to true if the colors of the target image should be inverted
+     */
+    static void reduce(BufferedImage source, BufferedImage target, Color backgroundColor, boolean invert) {
+        if (source.getColorModel() instanceof IndexColorModel) {
+            reduceIndexed(source, target, backgroundColor, invert);
+        } else if (target.getType() == BufferedImage.TYPE_USHORT_565_RGB) {
+            reduceRgb565(source, target, backgroundColor, invert);
+        } else if (target.getType() == BufferedImage.TYPE_INT_RGB) {
+            reduceRgb(source, target, backgroundColor, invert);
+        } else {
+            reduceMonochrome(source, target, backgroundColor, invert);
+        }
+    }
+
+    // <editor-fold desc="Internal methods">
+
+    private static void reduceRgb565(BufferedImage source, BufferedImage target, Color backgroundColor, boolean invert) {
+        var data = ((DataBufferUShort)target.getRaster().getDataBuffer()).getData();
+        int targetWidth = target.getWidth();
+        int targetHeight = target.getHeight();
+        int width = Math.min(source.getWidth(), targetWidth);
+        int height = Math.min(source.getHeight(), targetHeight);
+        int xor = invert ? 0xFFFF : 0;
+
+        // Background color as stored in the target by fillRect() and expanded again
+        int background = toRgb565(backgroundColor.getRGB());
+        var pool = BufferPool.get();
+        var backgroundTable = pool.getBackgroundTable(
+            (expand5(background >> 11) << 16) | (expand6((background >> 5) & 0x3F) << 8) | expand5(background & 0x1F),
+            FastReducer::createBackgroundTable
+        );
+
+        var row = pool.getRowBuffer(width);
+        for (int y = 0; y < targetHeight; y++) {
+            int offset = y *targetWidth;
+            int x = 0;
+            if (y < height) {
+                readRow(source, y, row);
+                blend(row, backgroundTable);
+                for (; x < width; x++) {
+                    data[offset + x] = (short)(toRgb565(row[x]) ^ xor);
+                }
+            }
+            for (; x < targetWidth; x++) {
+                data[offset + x] = (short)(background ^ xor);
+            }
+        }
+    }
+
+    private static void reduceRgb(BufferedImage source, BufferedImage target, Color backgroundColor, boolean invert) {
+        var data = ((DataBufferInt)target.getRaster().getDataBuffer()).getData();
+        int targetWidth = target.getWidth();
+        int targetHeight = target.getHeight();
+        int width = Math.min(source.getWidth(), targetWidth);
+        int height = Math.min(source.getHeight(), targetHeight);
+        int xor = invert ? 0xFFFFFF : 0;
+        int background = backgroundColor.getRGB() & 0xFFFFFF;
+        var pool = BufferPool.get();
+        var backgroundTable = pool.getBackgroundTable(background, FastReducer::createBackgroundTable);
+
+        var row = pool.getRowBuffer(width);
+        for (int y = 0; y < targetHeight; y++) {
+            int offset = y *targetWidth;
+            int x = 0;
+            if (y < height) {
+                readRow(source, y, row);
+                blend(row, backgroundTable);
+                for (; x < width; x++) {
+                    data[offset + x] = row[x] ^ xor;
+                }
+            }
+            for (; x < targetWidth; x++) {
+                data[offset + x] = background ^ xor;
+            }
+        }
+    }
+
+    private static void reduceMonochrome(BufferedImage source, BufferedImage target, Color backgroundColor, boolean invert) {
+        var map = getMonochromeMap();
+        var raster = target.getRaster();
+        var data = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int stride = (target.getWidth() + 7) /8;
+        int targetWidth = target.getWidth();
+        int targetHeight = target.getHeight();
+        int width = Math.min(source.getWidth(), targetWidth);
+        int height = Math.min(source.getHeight(), targetHeight);
+
+        // Background color as stored in the target by fillRect(). Note that
+        // the color model uses a different mapping than the inverse color map.
+        boolean bgWhite = ((byte[])target.getColorModel().getDataElements(backgroundColor.getRGB(), null))[0] != 0;
+        boolean background = bgWhite ^ invert;
+        var pool = BufferPool.get();
+        var backgroundTable = pool.getBackgroundTable(bgWhite ? 0xFFFFFF : 0, FastReducer::createBackgroundTable);
+
+        var row = pool.getRowBuffer(width);
+        for (int y = 0; y < targetHeight; y++) {
+            int offset = y *stride;
+            int x = 0;
+            if (y < height) {
+                readRow(source, y, row);
+                blend(row, backgroundTable);
+                for (; x < width; x++) {
+                    int rgb = row[x];
+                    int index = ((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x03E0) | ((rgb >> 3) & 0x001F);
+                    if (map[index] ^ invert) data[offset + (x >> 3)] |= (byte)(0x80 >> (x & 7));
+                }
+            }
+            if (background) {
+                for (; x < targetWidth; x++) {
+                    data[offset + (x >> 3)] |= (byte)(0x80 >> (x & 7));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reduces an image with an IndexColorModel. Every palette entry is
+     * blended and reduced once; the pixels are then mapped by their index.
+     * 1 bit images are mapped a byte (8 pixels) at a time into monochrome
+     * targets, which is a plain copy for black and white images.
+     */
+    private static void reduceIndexed(BufferedImage source, BufferedImage target, Color backgroundColor, boolean invert) {
+        var colorModel = (IndexColorModel)source.getColorModel();
+        var sourceModel = source.getRaster().getSampleModel();
+        int bits = (sourceModel instanceof MultiPixelPackedSampleModel)
+            ? ((MultiPixelPackedSampleModel)sourceModel).getPixelBitStride()
+            : 8;
+        var palette = new int[1 << bits];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = colorModel.getRGB(i);
+        }
+        
+        int targetWidth = target.getWidth();
+        int targetHeight = target.getHeight();
+        int width = Math.min(source.getWidth(), targetWidth);
+        int height = Math.min(source.getHeight(), targetHeight);
+        var pool = BufferPool.get();
+        
+        if (target.getType() == BufferedImage.TYPE_USHORT_565_RGB) {
+            var data = ((DataBufferUShort)target.getRaster().getDataBuffer()).getData();
+            int xor = invert ? 0xFFFF : 0;
+            int background = toRgb565(backgroundColor.getRGB());
+            blend(palette, pool.getBackgroundTable(
+                (expand5(background >> 11) << 16) | (expand6((background >> 5) & 0x3F) << 8) | expand5(background & 0x1F),
+                FastReducer::createBackgroundTable
+            ));
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = toRgb565(palette[i]) ^ xor;
+            }
+            
+            var row = pool.getRowBuffer(width);
+            for (int y = 0; y < targetHeight; y++) {
+                int offset = y *targetWidth;
+                int x = 0;
+                if (y < height) {
+                    readIndexRow(source, y, row);
+                    for (; x < width; x++) {
+                        data[offset + x] = (short)palette[row[x]];
+                    }
+                }
+                for (; x < targetWidth; x++) {
+                    data[offset + x] = (short)(background ^ xor);
+                }
+            }
+            return;
+        }
+        
+        if (target.getType() == BufferedImage.TYPE_INT_RGB) {
+            var data = ((DataBufferInt)target.getRaster().getDataBuffer()).getData();
+            int xor = invert ? 0xFFFFFF : 0;
+            int background = backgroundColor.getRGB() & 0xFFFFFF;
+            blend(palette, pool.getBackgroundTable(background, FastReducer::createBackgroundTable));
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] ^= xor;
+            }
+            
+            var row = pool.getRowBuffer(width);
+            for (int y = 0; y < targetHeight; y++) {
+                int offset = y *targetWidth;
+                int x = 0;
+                if (y < height) {
+                    readIndexRow(source, y, row);
+                    for (; x < width; x++) {
+                        data[offset + x] = palette[row[x]];
+                    }
+                }
+                for (; x < targetWidth; x++) {
+                    data[offset + x] = background ^ xor;
+                }
+            }
+            return;
+        }
+        
+        var map = getMonochromeMap();
+        var data = ((DataBufferByte)target.getRaster().getDataBuffer()).getData();
+        int stride = (targetWidth + 7) /8;
+        boolean bgWhite = ((byte[])target.getColorModel().getDataElements(backgroundColor.getRGB(), null))[0] != 0;
+        int backgroundBits = (bgWhite ^ invert) ? 0xFF : 0;
+        blend(palette, pool.getBackgroundTable(bgWhite ? 0xFFFFFF : 0, FastReducer::createBackgroundTable));
+        for (int i = 0; i < palette.length; i++) {
+            int rgb = palette[i];
+            palette[i] = (map[((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x03E0) | ((rgb >> 3) & 0x001F)] ^ invert) ? 1 : 0;
+        }
+        
+        if (bits == 1) {
+            // Lookup table mapping 8 source pixels to 8 target pixels
+            var table = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                int value = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    value |= palette[(i >> bit) & 1] << bit;
+                }
+                table[i] = (byte)value;
+            }
+            var raster = source.getRaster();
+            var sampleModel = (MultiPixelPackedSampleModel)sourceModel;
+            var sourceData = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int sourceOffset = raster.getDataBuffer().getOffset();
+            int tx = raster.getSampleModelTranslateX();
+            int ty = raster.getSampleModelTranslateY();
+            int fullBytes = width /8;
+            int tailMask = (0xFF00 >> (width & 7)) & 0xFF;
+            for (int y = 0; y < targetHeight; y++) {
+                int offset = y *stride;
+                int x = 0;
+                if (y < height) {
+                    int index = sourceOffset + sampleModel.getOffset(-tx, y - ty);
+                    for (; x < fullBytes; x++) {
+                        data[offset + x] = table[sourceData[index + x] & 0xFF];
+                    }
+                    if (tailMask != 0) {
+                        data[offset + x] = (byte)((table[sourceData[index + x] & 0xFF] & tailMask) | (backgroundBits & ~tailMask));
+                        x++;
+                    }
+                }
+                for (; x < stride; x++) {
+                    data[offset + x] = (byte)backgroundBits;
+                }
+            }
+            return;
+        }
+        
+        var row = pool.getRowBuffer(width);
+        for (int y = 0; y < targetHeight; y++) {
+            int offset = y *stride;
+            int x = 0;
+            if (y < height) {
+                readIndexRow(source, y, row);
+                for (; x < width; x++) {
+                    if (palette[row[x]] != 0) data[offset + (x >> 3)] |= (byte)(0x80 >> (x & 7));
+                }
+            }
+            if (backgroundBits != 0) {
+                for (; x < targetWidth; x++) {
+                    data[offset + (x >> 3)] |= (byte)(0x80 >> (x & 7));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads one row of palette indices of an indexed source image.
+     * @param source Source image (TYPE_BYTE_BINARY or TYPE_BYTE_INDEXED)
+     * @param y Row index
+     * @param row Array receiving row.length indices
+     */
+    private static void readIndexRow(BufferedImage source, int y, int[] row) {
+        int width = row.length;
+        var raster = source.getRaster();
+        var buffer = raster.getDataBuffer();
+        var data = ((DataBufferByte)buffer).getData();
+        var sampleModel = raster.getSampleModel();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        
+        if (sampleModel instanceof MultiPixelPackedSampleModel) {
+            var packedModel = (MultiPixelPackedSampleModel)sampleModel;
+            int bits = packedModel.getPixelBitStride();
+            int mask = (1 << bits) - 1;
+            int index = buffer.getOffset() + packedModel.getOffset(-tx, y - ty);
+            for (int x = 0, bit = 0; x < width; x++, bit += bits) {
+                row[x] = (data[index + (bit >> 3)] >> (8 - bits - (bit & 7))) & mask;
+            }
+            return;
+        }
+        
+        var componentModel = (ComponentSampleModel)sampleModel;
+        int pixelStride = componentModel.getPixelStride();
+        int index = buffer.getOffset() + (y - ty) *componentModel.getScanlineStride() - tx *pixelStride + componentModel.getBandOffsets()[0];
+        for (int x = 0; x < width; x++, index += pixelStride) {
+            row[x] = data[index] & 0xFF;
+        }
+    }
+    
+    /**
+     * Blends a row of ARGB pixels against the background color in place.
+     * Red and blue are multiplied together in one int (two 16 bit lanes), so
+     * a pixel needs two multiplications instead of six, and the background's
+     * share is looked up by alpha. The 8 bit multiplication rounds like
+     * Java2D's mul8table; as it yields c for 0xff * c and 0 for 0 * c, opaque
+     * and transparent pixels need no special case and the loop has no branches.
+     * @param row Source pixels (ARGB), receives the blended pixels (RGB)
+     * @param backgroundTable Background table (see createBackgroundTable())
+     */
+    private static void blend(int[] row, int[] backgroundTable) {
+        for (int x = 0; x < row.length; x++) {
+            int argb = row[x];
+            int a = argb >>> 24;
+            int rb = (argb & 0xFF00FF) *a + 0x800080;
+            int g = (argb & 0x00FF00) *a + 0x008000;
+            rb = ((rb + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+            g = ((g + ((g >>> 8) & 0x00FF00)) >>> 8) & 0x00FF00;
+            row[x] = (rb | g) + backgroundTable[a];
+        }
+    }
+
+    /**
+     * Creates a table containing the background color's share of a blended
+     * pixel for every alpha value of the source pixel.
+     * @param background Background color (RGB)
+     * @return Table with 256 entries (RGB)
+     */
+    private static int[] createBackgroundTable(int background) {
+        var table = new int[256];
+        for (int a = 0; a < 256; a++) {
+            int f = 0xff - a;
+            table[a] = (mul8(f, (background >> 16) & 0xFF) << 16)
+                     | (mul8(f, (background >> 8) & 0xFF) << 8)
+                     | mul8(f, background & 0xFF);
+        }
+        return table;
+    }
+
+    /**
+     * Multiplies two 8 bit values like Java2D's mul8table does.
+     */
+    private static int mul8(int a, int b) {
+        return (a *b *0x10101 + 0x800000) >>> 24;
+    }
+
+    /**
+     * Reads one row of the source image as non-premultiplied ARGB values
+     * directly from the raster's data buffer.
+     * @param source Source image
+     * @param y Row index
+     * @param row Array receiving row.length pixels
+     */
+    private static void readRow(BufferedImage source, int y, int[] row) {
+        int width = row.length;
+        var raster = source.getRaster();
+        var buffer = raster.getDataBuffer();
+        var sampleModel = raster.getSampleModel();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        
+        if (source.getType() == BufferedImage.TYPE_4BYTE_ABGR || source.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            var componentModel = (ComponentSampleModel)sampleModel;
+            var data = ((DataBufferByte)buffer).getData();
+            var bandOffsets = componentModel.getBandOffsets();
+            int pixelStride = componentModel.getPixelStride();
+            int index = buffer.getOffset() + (y - ty) *componentModel.getScanlineStride() - tx *pixelStride;
+            int r = index + bandOffsets[0];
+            int g = index + bandOffsets[1];
+            int b = index + bandOffsets[2];
+            if (bandOffsets.length > 3) {
+                int a = index + bandOffsets[3];
+                for (int x = 0; x < width; x++, a += pixelStride, r += pixelStride, g += pixelStride, b += pixelStride) {
+                    row[x] = ((data[a] & 0xFF) << 24) | ((data[r] & 0xFF) << 16) | ((data[g] & 0xFF) << 8) | (data[b] & 0xFF);
+                }
+            } else {
+                for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride) {
+                    row[x] = 0xff000000 | ((data[r] & 0xFF) << 16) | ((data[g] & 0xFF) << 8) | (data[b] & 0xFF);
+                }
+            }
+            return;
+        }
+        
+        var data = ((DataBufferInt)buffer).getData();
+        int index = buffer.getOffset() + ((SinglePixelPackedSampleModel)sampleModel).getOffset(-tx, y - ty);
+        System.arraycopy(data, index, row, 0, width);
+        switch (source.getType()) {
+            case BufferedImage.TYPE_INT_RGB -> {
+                for (int x = 0; x < width; x++) row[x] |= 0xff000000;
+            }
+            case BufferedImage.TYPE_INT_BGR -> {
+                for (int x = 0; x < width; x++) {
+                    int bgr = row[x];
+                    row[x] = 0xff000000 | ((bgr & 0xFF) << 16) | (bgr & 0xFF00) | ((bgr >> 16) & 0xFF);
+                }
+            }
+        }
+    }
+
+    private static int toRgb565(int rgb) {
+        return ((rgb >> 8) & 0xF800) | ((rgb >> 5) & 0x07E0) | ((rgb >> 3) & 0x001F);
+    }
+
+    private static int expand5(int value) {
+        return (value << 3) | (value >> 2);
+    }
+
+    private static int expand6(int value) {
+        return (value << 2) | (value >> 4);
+    }
+
+    private static boolean[] getMonochromeMap() {
+        var map = monochromeMap;
+        if (map == null) {
+            var probe = new BufferedImage(32768, 1, BufferedImage.TYPE_INT_RGB);
+            for (int i = 0; i < 32768; i++) {
+                probe.setRGB(i, 0, ((i & 0x7C00) << 9) | ((i & 0x03E0) << 6) | ((i & 0x001F) << 3));
+            }
+            var mono = new BufferedImage(32768, 1, BufferedImage.TYPE_BYTE_BINARY);
+            var graphics = mono.createGraphics();
+            graphics.drawImage(probe, 0, 0, null);
+            graphics.dispose();
+
+            map = new boolean[32768];
+            var raster = mono.getRaster();
+            for (int i = 0; i < 32768; i++) {
+                map[i] = raster.getSample(i, 0, 0) != 0;
+            }
+            monochromeMap = map;
+        }
+        return map;
+    }
+
+    // </editor-fold>
+
+}
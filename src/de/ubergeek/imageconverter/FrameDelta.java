@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.util.Arrays;
+
+/**
+ * Encodes the frames of an animation as changes to their previous frame.
+ * The packed frames are compared value by value (bytes in the monochrome
+ * modes, the literals of the color data otherwise); each frame is described by spans of
+ * changed values, given as offset and length. Spans separated by fewer
+ * unchanged values than a span header needs are merged.
+ * Keyframes consist of one span covering the whole frame, so every frame is
+ * decoded the same way. The first frame and every n-th frame (keyframe
+ * interval) are keyframes, as is every frame whose changes would take more
+ * space than the frame itself.
+ * Frames are expected in playback order; an instance must not be shared
+ * between threads.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class FrameDelta {
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * Every n-th frame is a keyframe; 0 for the first frame only.
+     */
+    private final int keyframeInterval;
+
+    /**
+     * Previous frame or null before the first frame.
+     */
+    private int[] previous;
+
+    /**
+     * Number of frames encoded so far.
+     */
+    private int frameCount;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates a delta encoder.
+     * @param keyframeInterval Every n-th frame is a keyframe; 0 for the first frame only
+     */
+    FrameDelta(int keyframeInterval) {
+        if (keyframeInterval < 0) throw new IllegalArgumentException("Invalid keyframe interval");
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Encodes the next frame.
+     * @param frame Packed frame, one value per array element
+     * @param headerLength Number of array elements of one span header
+     * @return Offset and length of each span, in pairs
+     */
+    int[] encode(int[] frame, int headerLength) {
+        if (previous != null && previous.length != frame.length) {
+            throw new IllegalArgumentException("All frames must have the same size (frame " + frameCount + " has " + frame.length + " values instead of " + previous.length + ")");
+        }
+
+        var keyframe = new int[] { 0, frame.length };
+        int[] spans = keyframe;
+        if (previous != null && (keyframeInterval == 0 || frameCount % keyframeInterval != 0)) {
+            spans = findSpans(previous, frame, headerLength);
+            int length = 0;
+            for (int i = 0; i < spans.length; i += 2) {
+                length += headerLength + spans[i +1];
+            }
+            if (length >= headerLength + frame.length) spans = keyframe;
+        }
+        previous = frame;
+        frameCount++;
+        return spans;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Finds the spans of changed values. A span is continued over unchanged
+     * values as long as the gap is not longer than a span header.
+     * @param previous Previous frame
+     * @param frame Current frame
+     * @param headerLength Number of array elements of one span header
+     * @return Offset and length of each span, in pairs
+     */
+    private static int[] findSpans(int[] previous, int[] frame, int headerLength) {
+        var spans = new int[16];
+        int count = 0;
+        int i = 0;
+        while (i < frame.length) {
+            if ((previous[i] ^ frame[i]) == 0) {
+                i++;
+                continue;
+            }
+            int end = i +1;
+            for (int j = end; j < frame.length && j - end <= headerLength; j++) {
+                if ((previous[j] ^ frame[j]) != 0) end = j +1;
+            }
+            if (count == spans.length) spans = Arrays.copyOf(spans, count *2);
+            spans[count++] = i;
+            spans[count++] = end - i;
+            i = end;
+        }
+        return Arrays.copyOf(spans, count);
+    }
+
+    // </editor-fold>
+
+}
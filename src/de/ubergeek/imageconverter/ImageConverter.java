@@ -19,13 +19,25 @@ package de.ubergeek.imageconverter;
 
 import com.formdev.flatlaf.FlatLightLaf;
 import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.imageio.ImageIO;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
@@ -35,33 +47,51 @@ import javax.swing.UnsupportedLookAndFeelException;
  */
 public class ImageConverter {
 
+    /**
+     * File name for stdin / stdout.
+     */
+    private final static String STDIO = "-";
+
+    /**
+     * Size of the stdin and stdout buffers.
+     */
+    private final static int BUFFER_SIZE = 1 << 16;
+
     /**
      * ImageConverter - command line wrapper
      * @param args the command line arguments
      * @throws java.io.IOException
      */
     public static void main(String[] args) throws IOException {
-        try {
-            UIManager.setLookAndFeel(new FlatLightLaf());
-        } catch (UnsupportedLookAndFeelException ex) {
-            Logger.getLogger(ImageConverter.class.getName()).log(Level.SEVERE, null, ex);
-        }
 
         // Open ui if program is called without arguments
         if (args.length == 0) {
+            try {
+                UIManager.setLookAndFeel(new FlatLightLaf());
+            } catch (UnsupportedLookAndFeelException ex) {
+                Logger.getLogger(ImageConverter.class.getName()).log(Level.SEVERE, null, ex);
+            }
             java.awt.EventQueue.invokeLater(() -> {
                 new MainWindow().setVisible(true);
             });
         } else {
             Converter converter = new Converter();
-            ConverterOptions options = new ConverterOptions();
+            var builder = ConverterOptions.builder();
+            ConverterOptions options;
             int i = 0;
             String arg;
             String value;
             String outfile = null;
             String outdir = null;
+            String jobFile = null;
             ArrayList<String> filenames = new ArrayList<>();
             boolean helpShown = false;
+            boolean incremental = false;
+            boolean framed = false;
+            boolean atlas = false;
+            FrameDelta frameDelta = null;
+            boolean showStats = false;
+            boolean showJsonStats = false;
 
             try {
                 while (i < args.length) {
@@ -72,36 +102,23 @@ public class ImageConverter {
                         // Specify the background color
                         case "-c", "--backgroundcolor" -> {
                             value = getArg(args, ++i);
-                            if (value != null) options.backgroundColor = Color.decode(value);
+                            if (value != null) builder.setBackgroundColor(Color.decode(value));
                         }
 
                         // Specify output format / conversion mode
                         case "-m", "--mode" -> {
                             value = getArg(args, ++i);
-                            switch (value) {
-                                case "rgb565":
-                                    options.mode = Converter.Mode.RGB565;
-                                    break;
-                                case "mono":
-                                case "monov":
-                                    options.mode = Converter.Mode.MONOV;
-                                    break;
-                                case "monoh":
-                                    options.mode = Converter.Mode.MONOH;
-                                    break;
-                                default:
-                                    throw new IllegalArgumentException("Unknown mode " + value);
-                            }
+                            builder.setMode(ConverterOptions.Builder.parseMode(value));
                         }
 
                         // Specify the variable name
                         case "-v", "--varname" -> {
-                            options.variableName = getArg(args, ++i);
+                            builder.setVariableName(getArg(args, ++i));
                         }
 
                         // Specify the variable type
                         case "-t", "--vartype" -> {
-                            options.variableType = getArg(args, ++i);
+                            builder.setVariableType(getArg(args, ++i));
                         }
 
                         // Specify output file name
@@ -114,23 +131,78 @@ public class ImageConverter {
 
                         // Specify if colors should be inverted
                         case "-i", "--invertcolors" -> {
-                            options.invertColors = true;
+                            builder.setInvertColors(true);
                         }
 
                         // Specify if image dimensions should be included in the array
                         case "-d", "--includedimensions" -> {
-                            options.includeDimensions = true;
+                            builder.setIncludeDimensions(true);
                         }
 
                         // Specify if ascii representation should be created
                         case "-a", "--ascii" -> {
-                            options.createAsciiArt = true;
+                            builder.setCreateAsciiArt(true);
+                        }
+
+                        // Scale the source image before color reduction
+                        case "--resizewidth" -> {
+                            value = getArg(args, ++i);
+                            builder.set(ConverterOptions.RESIZE_WIDTH, value);
+                        }
+
+                        case "--resizeheight" -> {
+                            value = getArg(args, ++i);
+                            builder.set(ConverterOptions.RESIZE_HEIGHT, value);
+                        }
+
+                        case "--resizefilter" -> {
+                            value = getArg(args, ++i);
+                            builder.setResizeFilter(ConverterOptions.Builder.parseResizeFilter(value));
+                        }
+
+                        // Create a transparency mask
+                        case "--mask" -> {
+                            value = getArg(args, ++i);
+                            builder.setMaskFormat(ConverterOptions.Builder.parseMaskFormat(value));
+                        }
+
+                        // Layout of the color data
+                        case "--byteorder" -> {
+                            value = getArg(args, ++i);
+                            builder.setByteOrder(ConverterOptions.Builder.parseByteOrder(value));
+                        }
+
+                        case "--wordsize" -> {
+                            value = getArg(args, ++i);
+                            builder.set(ConverterOptions.WORD_SIZE, value);
+                        }
+
+                        case "--rowalign" -> {
+                            value = getArg(args, ++i);
+                            builder.set(ConverterOptions.ROW_ALIGNMENT, value);
+                        }
+
+                        // Compress the color data
+                        case "--compression" -> {
+                            value = getArg(args, ++i);
+                            builder.setCompression(ConverterOptions.Builder.parseCompression(value));
+                        }
+
+                        // Crop the image to its content
+                        case "--trim" -> {
+                            builder.setTrim(true);
+                        }
+
+                        // Specify the maximum width of the ascii representation
+                        case "--asciiwidth" -> {
+                            value = getArg(args, ++i);
+                            builder.set(ConverterOptions.ASCII_ART_WIDTH, value);
                         }
 
                         // Specify the preset of typical options that should be used
                         case "-p", "--preset" -> {
                             value = getArg(args, ++i);
-                            options.applyPreset(ConverterOptions.Preset.valueOf(value));
+                            builder.applyPreset(ConverterOptions.Preset.valueOf(value));
                         }
 
                         // Specify the output directory
@@ -141,6 +213,42 @@ public class ImageConverter {
                             outdir = getArg(args, ++i);
                         }
 
+                        // Only regenerate output files whose inputs or options have changed
+                        case "-u", "--incremental" -> {
+                            incremental = true;
+                        }
+
+                        // Read input files and their options from a job file
+                        case "-j", "--job" -> {
+                            jobFile = getArg(args, ++i);
+                        }
+
+                        // Read a sequence of length-prefixed images from stdin
+                        case "-f", "--framed" -> {
+                            framed = true;
+                        }
+
+                        // Encode the input files as frames of an animation
+                        case "--delta" -> {
+                            value = getArg(args, ++i);
+                            frameDelta = new FrameDelta(Integer.parseInt(value));
+                        }
+
+                        // Pack all input files into one sprite atlas
+                        case "--atlas" -> {
+                            atlas = true;
+                        }
+
+                        // Print timings and throughput after conversion
+                        case "--stats" -> {
+                            showStats = true;
+                        }
+
+                        // Print timings and throughput in JSON format after conversion
+                        case "--stats-json" -> {
+                            showJsonStats = true;
+                        }
+
                         // Output some help
                         case "-h", "--help" -> {
                             showHelp();
@@ -156,46 +264,329 @@ public class ImageConverter {
                 }
 
                 // There should be some input files
-                if (filenames.isEmpty()) {
+                if (framed && filenames.isEmpty()) filenames.add(STDIO);
+                if (filenames.isEmpty() && jobFile == null) {
                     throw new IllegalArgumentException("No input files given!");
                 }
+                if (jobFile != null && (incremental || !filenames.isEmpty())) {
+                    throw new IllegalArgumentException("Option --job cannot be combined with --incremental or input files!");
+                }
+                if (filenames.contains(STDIO) || STDIO.equals(outfile)) {
+                    if (incremental || outdir != null) {
+                        throw new IllegalArgumentException("Standard input and output cannot be combined with --incremental or --directory!");
+                    }
+                    // Don't buffer stdin in temporary files
+                    ImageIO.setUseCache(false);
+                }
+                
+                options = builder.build();
+                boolean compressed = options.getCompression() != Converter.Compression.NONE;
+                if (atlas && (outfile == null || jobFile != null || incremental || filenames.contains(STDIO) || options.getMaskFormat() != Converter.MaskFormat.NONE || compressed)) {
+                    throw new IllegalArgumentException("Option --atlas requires --outputfile and cannot be combined with --job, --incremental, --mask, --compression or stdin!");
+                }
+                if (frameDelta != null && ((outfile == null && !framed) || jobFile != null || incremental || atlas || options.getMaskFormat() != Converter.MaskFormat.NONE || compressed)) {
+                    throw new IllegalArgumentException("Option --delta requires --outputfile or --framed and cannot be combined with --job, --incremental, --atlas, --mask or --compression!");
+                }
             
             } catch (IllegalArgumentException ex) {
-                if (!helpShown) showHelp();
+                if (!helpShown) {
+                    System.err.println(ex.getMessage());
+                    System.err.println();
+                    showHelp();
+                }
                 return;
             }
 
             if (helpShown) return;
             
-            // Remove file before appending data to it
-            if (outfile != null && Files.exists(Path.of(outfile))) {
-                Files.delete(Path.of(outfile));
+            var stats = (showStats || showJsonStats) ? new ConversionStats() : null;
+            converter.setStats(stats);
+            converter.setFrameDelta(frameDelta);
+            
+            if (jobFile != null) {
+                if (outfile != null) {
+                    options = options.toBuilder().setOutputFilename(Path.of(outfile).toAbsolutePath().toString()).build();
+                }
+                BatchJob job;
+                try {
+                    job = BatchJob.load(Path.of(jobFile), options, outdir);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid job file " + jobFile + ": " + ex.getMessage());
+                    return;
+                }
+                job.run(stats);
+            } else if (incremental) {
+                if (outfile != null) {
+                    convertIncremental(converter, options, outfile, filenames);
+                } else {
+                    for (var filename : filenames) {
+                        convertIncremental(converter, options, getOutputFilename(filename, outdir), List.of(filename));
+                    }
+                }
+            } else if (atlas) {
+                try {
+                    convertAtlas(converter, options, outfile, filenames);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Cannot create atlas: " + ex.getMessage());
+                    return;
+                }
+            } else {
+                try {
+                    convert(converter, options, outfile, outdir, filenames, framed);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Cannot convert images: " + ex.getMessage());
+                    return;
+                }
             }
-
-            boolean appendToFile = outfile != null && filenames.size() > 1;
+            
+            if (showStats) System.err.print(stats.createReport());
+            if (showJsonStats) System.err.println(stats.createJsonReport());
+        }
+    }
+    
+    /**
+     * Converts the given input files, either into one output file or into
+     * one output file per input file. An input file "-" is read from stdin;
+     * its source code is written to stdout unless an output file is given.
+     * @param converter Converter instance
+     * @param options Converter options
+     * @param outfile Name of the single output file, "-" for stdout or null
+     * @param outdir Output directory or null
+     * @param filenames Input files
+     * @param framed Set to true if stdin contains a sequence of length-prefixed images
+     * @throws IOException If a file could not be read or written
+     */
+    private static void convert(Converter converter, ConverterOptions options, String outfile, String outdir, List<String> filenames, boolean framed) throws IOException {
+        if (STDIO.equals(outfile) || (outfile == null && filenames.contains(STDIO))) {
+            // Source code is written progressively; System.out is not used
+            // for the data as PrintStream flushes on every line break
+            var writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE);
             for (var filename : filenames) {
-                converter.loadImage(filename);
-                
-                // Create output file name
-                if (outfile != null) {
-                    options.outputFilename = outfile;
-                } else if (outdir != null) {
-                    options.outputFilename = outdir + File.separator + converter.getDefaultOutputFileName(false);
+                convert(converter, options, filename, STDIO, writer, framed);
+            }
+            writer.flush();
+        } else if (outfile != null) {
+            // All images are written through one buffered channel; the
+            // output file is replaced only after all images are converted
+            try (var output = new AtomicOutputFile(Path.of(outfile))) {
+                if (usePipeline(converter, filenames)) {
+                    new ConversionPipeline().run(filenames,
+                        filename -> getFileOptions(options, filename, outfile),
+                        (filename, sourceCode) -> Converter.writeSourceCode(sourceCode, getFileOptions(options, filename, outfile), output.getWriter(), filename, null)
+                    );
                 } else {
-                    options.outputFilename = converter.getDefaultOutputFileName(true);
+                    for (var filename : filenames) {
+                        convert(converter, options, filename, outfile, output.getWriter(), framed);
+                    }
                 }
-                                
-                if (options.variableName.isBlank()) {
-                    options.variableName = converter.getDefaultVariableName();
+                output.commit();
+            }
+        } else if (usePipeline(converter, filenames)) {
+            new ConversionPipeline().run(filenames,
+                filename -> getFileOptions(options, filename, getOutputFilename(filename, outdir)),
+                (filename, sourceCode) -> {
+                    var fileOptions = getFileOptions(options, filename, getOutputFilename(filename, outdir));
+                    try (var file = new AtomicOutputFile(Path.of(fileOptions.getOutputFilename()))) {
+                        Converter.writeSourceCode(sourceCode, fileOptions, file.getWriter(), filename, null);
+                        file.commit();
+                    }
                 }
-                converter.saveOutputfile(options, appendToFile);
+            );
+        } else {
+            for (var filename : filenames) {
+                converter.loadImage(filename);
+                converter.saveOutputfile(getFileOptions(options, filename, getOutputFilename(filename, outdir)));
             }
         }
     }
     
+    /**
+     * Packs the given input files into one sprite atlas and writes its source
+     * code into the output file. If no variable name has been specified it
+     * will be derived from the output file name.
+     * @param converter Converter instance
+     * @param options Converter options
+     * @param outfile Name of the output file or "-" for stdout
+     * @param filenames Input files
+     * @throws IOException If a file could not be read or written
+     */
+    private static void convertAtlas(Converter converter, ConverterOptions options, String outfile, List<String> filenames) throws IOException {
+        var atlasOptions = STDIO.equals(outfile) ? getStreamOptions(options, outfile, -1) : getFileOptions(options, outfile, outfile);
+        var atlas = new SpriteAtlas(atlasOptions);
+        for (var filename : filenames) {
+            converter.loadImage(filename);
+            if (!converter.isImageLoaded()) throw new IOException("Unsupported image format: " + filename);
+            atlas.add(Converter.getDefaultVariableName(filename), converter, getFileOptions(options, filename, outfile));
+        }
+        var sourceCode = atlas.createSourceCode(converter.getStats());
+        if (STDIO.equals(outfile)) {
+            var writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE);
+            writer.write(sourceCode);
+            writer.flush();
+        } else {
+            AtomicOutputFile.write(Path.of(outfile), sourceCode);
+        }
+    }
+    
+    /**
+     * Checks if the given files should be converted by a ConversionPipeline:
+     * several input files, none of them stdin, no statistics (which are
+     * collected on a single thread only) and no delta encoding (which needs
+     * the frames in order).
+     * @param converter Converter instance
+     * @param filenames Input files
+     * @return true if the pipeline should be used
+     */
+    private static boolean usePipeline(Converter converter, List<String> filenames) {
+        return filenames.size() > 1 && !filenames.contains(STDIO) && converter.getStats() == null && converter.getFrameDelta() == null;
+    }
+    
+    /**
+     * Converts a single input file (or all images read from stdin) and writes
+     * the source code to the given writer.
+     * @param converter Converter instance
+     * @param options Converter options
+     * @param filename Input file or "-" for stdin
+     * @param outfile Name of the output file
+     * @param writer Writer the source code is written to
+     * @param framed Set to true if stdin contains a sequence of length-prefixed images
+     * @throws IOException If an image could not be read or written
+     */
+    private static void convert(Converter converter, ConverterOptions options, String filename, String outfile, Writer writer, boolean framed) throws IOException {
+        if (!STDIO.equals(filename)) {
+            converter.loadImage(filename);
+            converter.writeSourceCode(getFileOptions(options, filename, outfile), writer);
+            return;
+        }
+        
+        if (!framed) {
+            converter.loadImage(System.in, "stdin");
+            if (!converter.isImageLoaded()) throw new IOException("Unsupported image format on stdin");
+            converter.writeSourceCode(getStreamOptions(options, outfile, -1), writer);
+            writer.flush();
+            return;
+        }
+        
+        // Each frame: image size as 32 bit big endian number, image file
+        var in = new DataInputStream(new BufferedInputStream(System.in, BUFFER_SIZE));
+        for (int index = 0; ; index++) {
+            int first = in.read();
+            if (first < 0) break;
+            int length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            if (length < 0) throw new IOException("Invalid frame length " + Integer.toUnsignedString(length));
+            var data = in.readNBytes(length);
+            if (data.length < length) throw new EOFException("Frame " + index + " is truncated");
+            converter.loadImage(ByteBuffer.wrap(data), "stdin[" + index + "]");
+            if (!converter.isImageLoaded()) throw new IOException("Unsupported image format in frame " + index);
+            converter.writeSourceCode(getStreamOptions(options, outfile, index), writer);
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Converts the given input files into one output file. Segments of the
+     * output file whose input file and options did not change since the last
+     * run will be taken from the existing output file; if nothing changed at
+     * all the output file will not be touched.
+     * @param converter Converter instance
+     * @param options Converter options
+     * @param outputFilename Name of the output file
+     * @param filenames Input files
+     * @throws IOException If a file could not be read or written
+     */
+    private static void convertIncremental(Converter converter, ConverterOptions options, String outputFilename, List<String> filenames) throws IOException {
+        var outputFile = Path.of(outputFilename);
+        var manifest = BuildManifest.load(outputFile);
+        
+        var expectedSegments = new ArrayList<BuildManifest.Segment>();
+        for (var filename : filenames) {
+            expectedSegments.add(new BuildManifest.Segment(
+                Path.of(filename).toAbsolutePath().normalize().toString(),
+                BuildManifest.hashFile(Path.of(filename)),
+                BuildManifest.createOptionsFingerprint(getFileOptions(options, filename, outputFilename)),
+                0, 0
+            ));
+        }
+        
+        if (manifest.isUpToDate(expectedSegments)) return;
+        
+        var previousOutput = manifest.isOutputValid() ? Files.readString(outputFile) : null;
+        var sb = new StringBuilder();
+        var segments = new ArrayList<BuildManifest.Segment>();
+        for (int i = 0; i < filenames.size(); i++) {
+            var filename = filenames.get(i);
+            var expected = expectedSegments.get(i);
+            var recorded = previousOutput != null ? manifest.findSegment(expected) : null;
+            
+            String sourceCode;
+            if (recorded != null) {
+                sourceCode = previousOutput.substring(recorded.getOffset(), recorded.getOffset() + recorded.getLength());
+            } else {
+                converter.loadImage(filename);
+                sourceCode = converter.createSourceCode(getFileOptions(options, filename, outputFilename));
+            }
+            
+            segments.add(new BuildManifest.Segment(
+                expected.getInputFilename(), expected.getInputHash(), expected.getOptionsFingerprint(),
+                sb.length(), sourceCode.length()
+            ));
+            sb.append(sourceCode);
+        }
+        
+        var content = sb.toString();
+        AtomicOutputFile.write(outputFile, content);
+        manifest.update(segments, content);
+        manifest.save();
+    }
+    
+    /**
+     * Determines the name of the output file for the given input file if no
+     * single output file has been specified.
+     * @param filename Input file name
+     * @param outdir Output directory or null
+     * @return Output file name
+     */
+    private static String getOutputFilename(String filename, String outdir) {
+        if (outdir != null) {
+            return outdir + File.separator + Converter.getDefaultOutputFileName(filename, false);
+        }
+        return Converter.getDefaultOutputFileName(filename, true);
+    }
+    
+    /**
+     * Determines the options for the given input file. If no variable name
+     * has been specified it will be derived from the file name.
+     * @param options Options given on the command line
+     * @param filename Input file name
+     * @param outputFilename Output file name
+     * @return Options for the input file
+     */
+    private static ConverterOptions getFileOptions(ConverterOptions options, String filename, String outputFilename) {
+        var builder = options.toBuilder().setOutputFilename(outputFilename);
+        if (options.getVariableName().isBlank()) {
+            builder.setVariableName(Converter.getDefaultVariableName(filename));
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Determines the options for an image read from stdin. If no variable
+     * name has been specified "image" is used; images of a framed stream
+     * get their index appended.
+     * @param options Options given on the command line
+     * @param outputFilename Output file name
+     * @param index Index of the frame or -1 if the stream is not framed
+     * @return Options for the image
+     */
+    private static ConverterOptions getStreamOptions(ConverterOptions options, String outputFilename, int index) {
+        var variableName = options.getVariableName().isBlank() ? ConversionService.DEFAULT_VARIABLE_NAME : options.getVariableName();
+        if (index >= 0) variableName += "_" + index;
+        return options.toBuilder().setOutputFilename(outputFilename).setVariableName(variableName).build();
+    }
+    
     private static String getArg(String[] args, int index) {
         if (index < args.length) return args[index];
-        throw new IllegalArgumentException("Required argument is missing");
+        throw new IllegalArgumentException("Option " + args[index -1] + " requires an argument!");
     }
     
     private static void showHelp() {
@@ -208,24 +599,56 @@ public class ImageConverter {
             "-c, --backgroundcolor <color code>" + nl +
             "  Sets the background color for the target image." + nl + nl +
             "-m, --mode <mode>" + nl +
-            "  Specifies the output format: `rgb565` for 16bit color images or `monoh` or `monov` for monochrome images (horizontally or vertically grouped)." + nl + nl +
+            "  Specifies the output format: `rgb565` for 16bit color images, `rgb332`, `rgb444` or `rgb888` for 8, 12 or 24bit color images, `gray4` or `gray2` for 4 or 2bit grayscale images or `monoh` or `monov` for monochrome images (horizontally or vertically grouped)." + nl + nl +
             "-v, --varname <variable name>" + nl + 
             "  Specifies the variable name that should be generated. Should not be used if multiple files should be converted in one program call. In this case the variable name will be derived from file name." + nl + nl +
             "-t, --vartype <type>" + nl +
-            "  The c type expression that should be used in the generated source code." + nl + nl +
+            "  The c type expression that should be used in the generated source code. Defaults to a type matching the size of the literals (e.g. `const uint8_t PROGMEM` for the byte packed color modes)." + nl + nl +
             "-o, --outputfile <filename>" + nl +
-            "  Specifies the name of the output file that should be created." + nl + nl +
+            "  Specifies the name of the output file that should be created. Use `-` to write to stdout." + nl + nl +
             "-i, --invertcolors" + nl +
             "  Set this option to invert the color reduced image." + nl + nl +
             "-d, --includedimensions" + nl +
             "  When this option is set, the generated array data will contain the image dimensions at the beginning." + nl + nl +
+            "--resizewidth <width>, --resizeheight <height>" + nl +
+            "  Scales the image to the given size before the colors are reduced. If only one of them is given, the aspect ratio is kept." + nl + nl +
+            "--resizefilter <nearest|box|lanczos>" + nl +
+            "  Filter used for scaling: `nearest` keeps hard pixel edges, `box` averages the covered pixels, `lanczos` (default) gives the sharpest results." + nl + nl +
+            "--mask <none|separate|interleaved>" + nl +
+            "  Creates a transparency mask (monochrome modes only), either as separate array with the suffix `_mask` or interleaved with the image data (Arduboy's sprite plus mask format)." + nl + nl +
+            "--byteorder <big|little>" + nl +
+            "  Byte order of the pixels in the modes `rgb565` and `rgb888`: `big` (default) puts the high byte (or red) first. With 16 bit literals this is the order within each literal; a little endian controller stores the literals low byte first, so use `--wordsize 8` (or `little` with 16 bit literals) to get the byte stream SPI displays expect in memory." + nl + nl +
+            "--wordsize <8|16|32>" + nl +
+            "  Splits the color data into literals of the given size; the first byte of each literal is its most significant one. Default is one literal per pixel for `rgb565` and one per byte for the other color modes." + nl + nl +
+            "--rowalign <bytes>" + nl +
+            "  Pads each row of color data with zero bytes to a multiple of the given number of bytes (e.g. for DMA transfers)." + nl + nl +
+            "--compression <none|rle>" + nl +
+            "  Compresses RGB565 data: `rle` stores runs of equal pixels as one header word plus the color, other pixels as header word plus literal pixels." + nl + nl +
+            "--trim" + nl +
+            "  Crops the image to the bounding box of all pixels that are neither transparent nor in the background color. The offset of the cropped image is written as comment and as array with the suffix `_offset`." + nl + nl +
             "-a, --ascii" + nl + 
             "  Use this option when a ascii representation of the image should be included in the generated source code." + nl + nl +
+            "--asciiwidth <characters>" + nl +
+            "  Scales the ascii representation down (by an integer factor) until it is not wider than the given number of characters. 0 (default) means one character per pixel." + nl + nl +
             "-e, --directory" + nl + 
             "  Specify an output directory for generated files." + nl + nl +
+            "-u, --incremental" + nl +
+            "  Keep a build manifest next to each output file and only regenerate what has changed since the last run." + nl + nl +
+            "-f, --framed" + nl +
+            "  Read a sequence of images from stdin, each preceded by its size in bytes (32 bit, big endian)." + nl + nl +
+            "--delta <keyframe interval>" + nl +
+            "  Encodes the input files (or framed images) as animation: each frame only contains the spans that changed since the previous frame. Every n-th frame is stored completely (0: only the first one)." + nl + nl +
+            "--atlas" + nl +
+            "  Packs all input files into one sprite atlas: a single image array plus a table with position and size of each image (requires --outputfile)." + nl + nl +
+            "-j, --job <job file>" + nl +
+            "  Convert the images listed in a job file (properties format) with their individual options, in parallel." + nl + nl +
+            "--stats" + nl +
+            "  Print timings per conversion stage, throughput and allocations to stderr." + nl + nl +
+            "--stats-json" + nl +
+            "  Like --stats, but in JSON format." + nl + nl +
             "-h, --help" + nl + 
             "  Show this help text." + nl + nl +
-            "Other argument will be interpreted as input file names. Don't give any arguments to start a graphical interface." + nl + nl
+            "Other argument will be interpreted as input file names; `-` reads an image from stdin and writes to stdout unless an output file is given. Don't give any arguments to start a graphical interface." + nl + nl
         );
     }
 
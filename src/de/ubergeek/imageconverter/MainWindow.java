@@ -47,7 +47,7 @@ public class MainWindow extends javax.swing.JFrame {
     /**
      * Instance of the currently selected converter options.
      */
-    private final ConverterOptions options;
+    private ConverterOptions options;
     
     /**
      * Instance of JFileChooser for "Open image" command
@@ -72,7 +72,7 @@ public class MainWindow extends javax.swing.JFrame {
 
         statusBarProgressBar.setVisible(false);        
         converter = new Converter();
-        options = new ConverterOptions();
+        options = ConverterOptions.DEFAULT;
         updateUserInterfaceState();
         
         // Drag and drop support
@@ -142,40 +142,51 @@ public class MainWindow extends javax.swing.JFrame {
      * selected options from options object.
      */
     private void copyOptionsToUserInterface() {
-        backgroundColorPreviewPanel.setBackground(options.backgroundColor);
-        if (options.mode == Converter.Mode.MONOV) {
+        backgroundColorPreviewPanel.setBackground(options.getBackgroundColor());
+        if (options.getMode() == Converter.Mode.MONOV) {
             targetFormatComboBox.setSelectedIndex(0);
-        } else if (options.mode == Converter.Mode.MONOH) {
+        } else if (options.getMode() == Converter.Mode.MONOH) {
             targetFormatComboBox.setSelectedIndex(1);
         } else {
             targetFormatComboBox.setSelectedIndex(2);
         }
-        variableNameTextField.setText(options.variableName);
-        variableTypeTextField.setText(options.variableType);
-        outputFilenameTextField.setText(options.outputFilename);
-        invertColorsCheckBox.setSelected(options.invertColors);
-        includeDimensionsCheckBox.setSelected(options.includeDimensions);
-        createAsciiArtCheckBox.setSelected(options.createAsciiArt);
+        variableNameTextField.setText(options.getVariableName());
+        variableTypeTextField.setText(options.getVariableType());
+        outputFilenameTextField.setText(options.getOutputFilename());
+        invertColorsCheckBox.setSelected(options.isInvertColors());
+        includeDimensionsCheckBox.setSelected(options.isIncludeDimensions());
+        createAsciiArtCheckBox.setSelected(options.isCreateAsciiArt());
     }
     
     /**
-     * Copies all options from user interface elements into the options object.
+     * Creates new options from the user interface elements. If an option is
+     * invalid, the previous options are kept and an error is shown in the
+     * status bar.
+     * @return true if the options are valid
      */
-    private void copyOptionsFromUserInterface() {
-        options.backgroundColor = backgroundColorPreviewPanel.getBackground();
-        if (targetFormatComboBox.getSelectedIndex() == 0) {
-            options.mode = Converter.Mode.MONOV;
-        } else if (targetFormatComboBox.getSelectedIndex() == 1) {
-            options.mode = Converter.Mode.MONOH;
-        } else if (targetFormatComboBox.getSelectedIndex() == 2) {
-            options.mode = Converter.Mode.RGB565;
+    private boolean copyOptionsFromUserInterface() {
+        var builder = options.toBuilder();
+        try {
+            builder.setBackgroundColor(backgroundColorPreviewPanel.getBackground());
+            if (targetFormatComboBox.getSelectedIndex() == 0) {
+                builder.setMode(Converter.Mode.MONOV);
+            } else if (targetFormatComboBox.getSelectedIndex() == 1) {
+                builder.setMode(Converter.Mode.MONOH);
+            } else if (targetFormatComboBox.getSelectedIndex() == 2) {
+                builder.setMode(Converter.Mode.RGB565);
+            }
+            builder.setVariableName(variableNameTextField.getText());
+            builder.setVariableType(variableTypeTextField.getText());
+            builder.setOutputFilename(outputFilenameTextField.getText());
+            builder.setInvertColors(invertColorsCheckBox.isSelected());
+            builder.setIncludeDimensions(includeDimensionsCheckBox.isSelected());
+            builder.setCreateAsciiArt(createAsciiArtCheckBox.isSelected());
+            options = builder.build();
+            return true;
+        } catch (IllegalArgumentException ex) {
+            statusBarLabel.setText(ex.getMessage());
+            return false;
         }
-        options.variableName = variableNameTextField.getText();
-        options.variableType = variableTypeTextField.getText();
-        options.outputFilename = outputFilenameTextField.getText();
-        options.invertColors = invertColorsCheckBox.isSelected();
-        options.includeDimensions = includeDimensionsCheckBox.isSelected();
-        options.createAsciiArt = createAsciiArtCheckBox.isSelected();
     }
     
     /**
@@ -183,13 +194,14 @@ public class MainWindow extends javax.swing.JFrame {
      * file.
      */
     private void saveImage() {
+        var saveOptions = options;
         SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
             boolean success = false;
 
             @Override
             protected Void doInBackground() {
                 try {
-                    converter.saveOutputfile(options, false);
+                    converter.saveOutputfile(saveOptions, false);
                     success = true;
                 } catch (IOException ex) {
                     Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
@@ -230,8 +242,10 @@ public class MainWindow extends javax.swing.JFrame {
             protected Void doInBackground() {
                 try {
                     converter.loadImage(filename);
-                    options.outputFilename = converter.getDefaultOutputFileName(true);
-                    options.variableName = converter.getDefaultVariableName();
+                    options = options.toBuilder()
+                        .setOutputFilename(converter.getDefaultOutputFileName(true))
+                        .setVariableName(converter.getDefaultVariableName())
+                        .build();
                     success = true;
                 } catch (IOException ex) {
                     Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
@@ -298,13 +312,13 @@ public class MainWindow extends javax.swing.JFrame {
     private void cmdApplyPreset() {
         switch (presetComboBox.getSelectedIndex()) {
             case 0 -> {
-                options.applyPreset(ConverterOptions.Preset.arduboy);
+                options = options.toBuilder().applyPreset(ConverterOptions.Preset.arduboy).build();
             }
             case 1 -> {
-                options.applyPreset(ConverterOptions.Preset.cosmono);
+                options = options.toBuilder().applyPreset(ConverterOptions.Preset.cosmono).build();
             }
             case 2 -> {
-                options.applyPreset(ConverterOptions.Preset.cos);
+                options = options.toBuilder().applyPreset(ConverterOptions.Preset.cos).build();
             }
         }
         copyOptionsToUserInterface();
@@ -329,7 +343,7 @@ public class MainWindow extends javax.swing.JFrame {
      * Saves the currently loaded image as source file.
      */
     private void cmdSave() {
-        copyOptionsFromUserInterface();
+        if (!copyOptionsFromUserInterface()) return;
         updatePreviewImage();
         saveImage();
     }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for indexed PNG files (palette images with 1, 2, 4 or 8 bits per
+ * pixel and 1 bit grayscale images), which is what most sprites are stored as.
+ * The unfiltered rows are used as the raster of the image without expanding
+ * them, so the image has the same type and color model ImageIO would create
+ * (TYPE_BYTE_BINARY or TYPE_BYTE_INDEXED) at a fraction of the cost.
+ * All other images (and anything unexpected) are left to ImageIO: the decode
+ * methods return null in this case.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class PngDecoder {
+
+    private final static long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private final static int IHDR = 0x49484452;
+    private final static int PLTE = 0x504C5445;
+    private final static int TRNS = 0x74524E53;
+    private final static int IDAT = 0x49444154;
+    private final static int IEND = 0x49454E44;
+
+    private final static int COLOR_TYPE_GRAY = 0;
+    private final static int COLOR_TYPE_PALETTE = 3;
+
+    /**
+     * Signature and IHDR chunk.
+     */
+    private final static int HEADER_SIZE = 8 + 8 + 13 + 4;
+
+    private PngDecoder() {
+    }
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Decodes the remaining bytes of the given buffer if they contain a
+     * supported PNG file. The position of the buffer is not changed.
+     * @param buffer Buffer containing an image file
+     * @return Decoded image or null if the image is not supported
+     */
+    static BufferedImage decode(ByteBuffer buffer) {
+        var data = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        if (data.remaining() < HEADER_SIZE || !isSupported(data.duplicate())) return null;
+        try {
+            return decodeChunks(data);
+        } catch (DataFormatException | RuntimeException ex) {
+            // Damaged or unusual file: ImageIO will report the details
+            return null;
+        }
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Checks the signature and the IHDR chunk.
+     * @param header Buffer positioned at the start of the file
+     * @return true if the image can be decoded
+     */
+    private static boolean isSupported(ByteBuffer header) {
+        header.order(ByteOrder.BIG_ENDIAN);
+        if (header.getLong() != SIGNATURE || header.getInt() != 13 || header.getInt() != IHDR) return false;
+        int width = header.getInt();
+        int height = header.getInt();
+        int bitDepth = header.get();
+        int colorType = header.get();
+        int compression = header.get();
+        int filter = header.get();
+        int interlace = header.get();
+        if (width <= 0 || height <= 0 || (long)width *height > Integer.MAX_VALUE / 2) return false;
+        if (compression != 0 || filter != 0 || interlace != 0) return false;
+        if (colorType == COLOR_TYPE_GRAY) return bitDepth == 1;
+        if (colorType == COLOR_TYPE_PALETTE) return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+        return false;
+    }
+
+    private static BufferedImage decodeChunks(ByteBuffer data) throws DataFormatException {
+        data.position(16);
+        int width = data.getInt();
+        int height = data.getInt();
+        int bitDepth = data.get();
+        int colorType = data.get();
+        data.position(HEADER_SIZE);
+
+        int stride = (int)(((long)width *bitDepth + 7) / 8);
+        var raw = new byte[(stride + 1) *height];
+        int rawLength = 0;
+        byte[] palette = null;
+        byte[] alpha = null;
+        boolean end = false;
+
+        var inflater = new Inflater();
+        try {
+            while (!end) {
+                int length = data.getInt();
+                int type = data.getInt();
+                if (length < 0 || length > data.remaining() - 4) return null;
+                var chunk = data.slice().limit(length);
+                data.position(data.position() + length + 4); // skip CRC
+                switch (type) {
+                    case PLTE -> {
+                        if (length % 3 != 0 || length == 0) return null;
+                        palette = new byte[length];
+                        chunk.get(palette);
+                    }
+                    case TRNS -> {
+                        // Transparent gray values are left to ImageIO
+                        if (colorType != COLOR_TYPE_PALETTE) return null;
+                        alpha = new byte[length];
+                        chunk.get(alpha);
+                    }
+                    case IDAT -> {
+                        inflater.setInput(chunk);
+                        while (!inflater.needsInput() && !inflater.finished() && rawLength < raw.length) {
+                            int count = inflater.inflate(raw, rawLength, raw.length - rawLength);
+                            if (count == 0 && inflater.needsDictionary()) return null;
+                            rawLength += count;
+                        }
+                    }
+                    case IEND -> end = true;
+                    default -> {
+                        // Unknown critical chunks could change the meaning of the image
+                        if ((type & 0x20000000) == 0) return null;
+                    }
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        if (rawLength != raw.length) return null;
+        if (colorType == COLOR_TYPE_PALETTE && palette == null) return null;
+
+        var pixels = unfilter(raw, stride, height);
+        var colorModel = (colorType == COLOR_TYPE_PALETTE)
+            ? createColorModel(bitDepth, palette, alpha)
+            : new IndexColorModel(1, 2, new byte[] { 0, (byte)0xFF }, new byte[] { 0, (byte)0xFF }, new byte[] { 0, (byte)0xFF });
+        var buffer = new DataBufferByte(pixels, pixels.length);
+        var raster = (bitDepth < 8)
+            ? Raster.createPackedRaster(buffer, width, height, bitDepth, null)
+            : Raster.createInterleavedRaster(buffer, width, height, stride, 1, new int[] { 0 }, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Creates the color model like ImageIO does: the palette is padded to
+     * 2^bitDepth entries by repeating the last entry, missing alpha values
+     * are opaque.
+     */
+    private static IndexColorModel createColorModel(int bitDepth, byte[] palette, byte[] alpha) {
+        int entries = palette.length / 3;
+        int size = Math.max(1 << bitDepth, entries);
+        var red = new byte[size];
+        var green = new byte[size];
+        var blue = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int index = Math.min(i, entries - 1) *3;
+            red[i] = palette[index];
+            green[i] = palette[index + 1];
+            blue[i] = palette[index + 2];
+        }
+        if (alpha == null) return new IndexColorModel(bitDepth, size, red, green, blue);
+        var alphas = new byte[size];
+        Arrays.fill(alphas, (byte)0xFF);
+        System.arraycopy(alpha, 0, alphas, 0, Math.min(alpha.length, size));
+        return new IndexColorModel(bitDepth, size, red, green, blue, alphas);
+    }
+
+    /**
+     * Reverses the PNG row filters. For bit depths up to 8 a pixel never
+     * spans more than one byte, so the filters work on single bytes.
+     * @param raw Inflated rows, each starting with its filter type
+     * @param stride Bytes per row (without filter type)
+     * @param height Number of rows
+     * @return Unfiltered rows without filter types
+     */
+    private static byte[] unfilter(byte[] raw, int stride, int height) {
+        var pixels = new byte[stride *height];
+        for (int y = 0; y < height; y++) {
+            int in = y *(stride + 1);
+            int filter = raw[in++];
+            int out = y *stride;
+            int prev = out - stride;
+            switch (filter) {
+                case 0 -> System.arraycopy(raw, in, pixels, out, stride);
+                case 1 -> {
+                    int left = 0;
+                    for (int x = 0; x < stride; x++) {
+                        left = (raw[in + x] + left) & 0xFF;
+                        pixels[out + x] = (byte)left;
+                    }
+                }
+                case 2 -> {
+                    for (int x = 0; x < stride; x++) {
+                        int up = (y > 0) ? pixels[prev + x] : 0;
+                        pixels[out + x] = (byte)(raw[in + x] + up);
+                    }
+                }
+                case 3 -> {
+                    int left = 0;
+                    for (int x = 0; x < stride; x++) {
+                        int up = (y > 0) ? pixels[prev + x] & 0xFF : 0;
+                        left = (raw[in + x] + ((left + up) >> 1)) & 0xFF;
+                        pixels[out + x] = (byte)left;
+                    }
+                }
+                case 4 -> {
+                    int left = 0;
+                    int upperLeft = 0;
+                    for (int x = 0; x < stride; x++) {
+                        int up = (y > 0) ? pixels[prev + x] & 0xFF : 0;
+                        int p = left + up - upperLeft;
+                        int pa = Math.abs(p - left);
+                        int pb = Math.abs(p - up);
+                        int pc = Math.abs(p - upperLeft);
+                        int predictor = (pa <= pb && pa <= pc) ? left : (pb <= pc) ? up : upperLeft;
+                        left = (raw[in + x] + predictor) & 0xFF;
+                        upperLeft = up;
+                        pixels[out + x] = (byte)left;
+                    }
+                }
+                default -> throw new IllegalArgumentException("Invalid filter type " + filter);
+            }
+        }
+        return pixels;
+    }
+
+    // </editor-fold>
+
+}
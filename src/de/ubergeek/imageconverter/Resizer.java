@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import de.ubergeek.imageconverter.Converter.ResizeFilter;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Scales images to the target size before color reduction.
+ * The box and Lanczos filters are separable: rows are filtered horizontally
+ * into an intermediate buffer, which is then filtered vertically. The
+ * weights of both directions are calculated once per call, as every output
+ * row (or column) uses the same source pixels and weights. Colors are
+ * filtered with premultiplied alpha, so transparent pixels don't darken
+ * their neighbours. Large images are processed in parallel, row by row.
+ * The result is always a TYPE_INT_ARGB image, which FastReducer handles.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class Resizer {
+
+    /**
+     * Images with at least this many output pixels are scaled in parallel.
+     */
+    private final static int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * Radius of the Lanczos kernel (in source pixels when enlarging).
+     */
+    private final static int LANCZOS_RADIUS = 3;
+
+    /**
+     * Filter weights for one direction: output pixel i uses the source
+     * pixels first[i] to first[i] +count[i] -1 with the weights at
+     * i *stride in weights.
+     */
+    private static class Weights {
+        final int[] first;
+        final int[] count;
+        final float[] weights;
+        final int stride;
+
+        Weights(int length, int stride) {
+            first = new int[length];
+            count = new int[length];
+            weights = new float[length *stride];
+            this.stride = stride;
+        }
+    }
+
+    private Resizer() {
+    }
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Scales the given image.
+     * @param source Source image
+     * @param width Target width
+     * @param height Target height
+     * @param filter Resize filter
+     * @return Scaled image (TYPE_INT_ARGB)
+     */
+    static BufferedImage resize(BufferedImage source, int width, int height, ResizeFilter filter) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        var pixels = source.getRGB(0, 0, sourceWidth, sourceHeight, null, 0, sourceWidth);
+        var target = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        var result = ((DataBufferInt)target.getRaster().getDataBuffer()).getData();
+        boolean parallel = (long)width *height >= PARALLEL_THRESHOLD;
+
+        if (filter == ResizeFilter.NEAREST) {
+            var columns = createNearestMap(sourceWidth, width);
+            var rows = createNearestMap(sourceHeight, height);
+            forEachRow(height, parallel, y -> {
+                int in = rows[y] *sourceWidth;
+                int out = y *width;
+                for (int x = 0; x < width; x++) {
+                    result[out + x] = pixels[in + columns[x]];
+                }
+            });
+            return target;
+        }
+
+        var horizontal = createWeights(sourceWidth, width, filter);
+        var vertical = createWeights(sourceHeight, height, filter);
+
+        // Horizontal pass: premultiplied ARGB, 4 floats per pixel
+        var intermediate = new float[sourceHeight *width *4];
+        forEachRow(sourceHeight, parallel, y -> {
+            int in = y *sourceWidth;
+            int out = y *width *4;
+            for (int x = 0; x < width; x++, out += 4) {
+                float a = 0, r = 0, g = 0, b = 0;
+                int offset = x *horizontal.stride;
+                int first = horizontal.first[x];
+                for (int k = 0; k < horizontal.count[x]; k++) {
+                    int argb = pixels[in + first + k];
+                    float alpha = (argb >>> 24) *horizontal.weights[offset + k];
+                    a += alpha;
+                    r += ((argb >> 16) & 0xFF) *alpha;
+                    g += ((argb >> 8) & 0xFF) *alpha;
+                    b += (argb & 0xFF) *alpha;
+                }
+                intermediate[out] = a;
+                intermediate[out + 1] = r;
+                intermediate[out + 2] = g;
+                intermediate[out + 3] = b;
+            }
+        });
+
+        // Vertical pass and conversion back to ARGB
+        forEachRow(height, parallel, y -> {
+            var sums = new float[width *4];
+            int offset = y *vertical.stride;
+            int first = vertical.first[y];
+            for (int k = 0; k < vertical.count[y]; k++) {
+                float weight = vertical.weights[offset + k];
+                int in = (first + k) *width *4;
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += intermediate[in + i] *weight;
+                }
+            }
+            int out = y *width;
+            for (int x = 0; x < width; x++) {
+                float a = sums[x *4];
+                int alpha = clamp(a);
+                if (alpha == 0) {
+                    result[out + x] = 0;
+                } else {
+                    result[out + x] = (alpha << 24)
+                        | (clamp(sums[x *4 + 1] /a) << 16)
+                        | (clamp(sums[x *4 + 2] /a) << 8)
+                        | clamp(sums[x *4 + 3] /a);
+                }
+            }
+        });
+        return target;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    private static void forEachRow(int rows, boolean parallel, IntConsumer action) {
+        if (parallel) {
+            IntStream.range(0, rows).parallel().forEach(action);
+        } else {
+            for (int y = 0; y < rows; y++) {
+                action.accept(y);
+            }
+        }
+    }
+
+    /**
+     * Maps each target pixel to the source pixel containing its center.
+     */
+    private static int[] createNearestMap(int sourceLength, int length) {
+        var map = new int[length];
+        for (int i = 0; i < length; i++) {
+            map[i] = (int)Math.min(sourceLength -1, ((long)i *2 +1) *sourceLength /(2L *length));
+        }
+        return map;
+    }
+
+    /**
+     * Calculates the normalized filter weights for one direction.
+     * @param sourceLength Number of source pixels
+     * @param length Number of target pixels
+     * @param filter BOX or LANCZOS
+     * @return Weights
+     */
+    private static Weights createWeights(int sourceLength, int length, ResizeFilter filter) {
+        double scale = (double)sourceLength /length;
+        if (filter == ResizeFilter.BOX) {
+            // Area average: each target pixel covers scale source pixels
+            var result = new Weights(length, (int)Math.ceil(scale) +1);
+            for (int i = 0; i < length; i++) {
+                double from = i *scale;
+                double to = Math.min(sourceLength, (i +1) *scale);
+                int first = (int)from;
+                int last = Math.min(sourceLength, (int)Math.ceil(to)) -1;
+                result.first[i] = first;
+                result.count[i] = last -first +1;
+                for (int j = first; j <= last; j++) {
+                    result.weights[i *result.stride + j -first] = (float)((Math.min(to, j +1) - Math.max(from, j)) /(to -from));
+                }
+            }
+            return result;
+        }
+
+        // Lanczos: the kernel is stretched when reducing the size
+        double stretch = Math.max(1, scale);
+        double radius = LANCZOS_RADIUS *stretch;
+        var result = new Weights(length, (int)Math.ceil(radius) *2 +1);
+        for (int i = 0; i < length; i++) {
+            double center = (i +0.5) *scale -0.5;
+            int first = Math.max(0, (int)Math.ceil(center -radius));
+            int last = Math.min(sourceLength -1, (int)Math.floor(center +radius));
+            int offset = i *result.stride;
+            double sum = 0;
+            for (int j = first; j <= last; j++) {
+                double weight = lanczos((j -center) /stretch);
+                result.weights[offset + j -first] = (float)weight;
+                sum += weight;
+            }
+            for (int j = 0; j <= last -first; j++) {
+                result.weights[offset + j] /= sum;
+            }
+            result.first[i] = first;
+            result.count[i] = last -first +1;
+        }
+        return result;
+    }
+
+    private static double lanczos(double x) {
+        if (x == 0) return 1;
+        if (Math.abs(x) >= LANCZOS_RADIUS) return 0;
+        double px = Math.PI *x;
+        return LANCZOS_RADIUS *Math.sin(px) *Math.sin(px /LANCZOS_RADIUS) /(px *px);
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    // </editor-fold>
+
+}
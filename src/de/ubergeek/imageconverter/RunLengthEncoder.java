@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import java.util.Arrays;
+
+/**
+ * Run length encoding of RGB565 pixels.
+ * The pixels are written as a sequence of packets, each starting with a
+ * header word: if its highest bit is set, the packet is a run and the next
+ * word is a color repeated (header & 0x7FFF) + 1 times; otherwise it is
+ * followed by (header + 1) literal pixels. Runs shorter than MIN_RUN pixels
+ * are kept within the literals, as a run packet would not save anything.
+ * The encoder reads every pixel once; incompressible images only grow by
+ * one header per MAX_COUNT pixels.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class RunLengthEncoder {
+
+    /**
+     * Flag of run headers.
+     */
+    final static int RUN = 0x8000;
+
+    /**
+     * Largest number of pixels of one packet (15 bit count minus one).
+     */
+    private final static int MAX_COUNT = 0x8000;
+
+    /**
+     * Shortest run that is written as run packet.
+     */
+    private final static int MIN_RUN = 3;
+
+    private RunLengthEncoder() {
+    }
+
+    /**
+     * Encodes the given pixels.
+     * @param pixels RGB565 pixels
+     * @param length Number of pixels
+     * @return Header and pixel words (unsigned 16 bit values)
+     */
+    static int[] encode(short[] pixels, int length) {
+        // Every run saves at least one word, which pays for the header of
+        // the literals following it
+        var result = new int[length + length /MAX_COUNT +1];
+        int out = 0;
+        int literals = 0;
+        int i = 0;
+        while (i < length) {
+            int color = pixels[i];
+            int run = 1;
+            while (i + run < length && run < MAX_COUNT && pixels[i + run] == color) {
+                run++;
+            }
+            if (run >= MIN_RUN) {
+                out = appendLiterals(pixels, literals, i, result, out);
+                result[out++] = RUN | (run -1);
+                result[out++] = color & 0xFFFF;
+                literals = i + run;
+            }
+            i += run;
+        }
+        out = appendLiterals(pixels, literals, length, result, out);
+        return Arrays.copyOf(result, out);
+    }
+
+    /**
+     * Appends literal packets for the given range of pixels.
+     * @param pixels RGB565 pixels
+     * @param start First pixel
+     * @param end Pixel after the last one
+     * @param result Encoded words
+     * @param out Index of the next word
+     * @return Index of the next word after the packets
+     */
+    private static int appendLiterals(short[] pixels, int start, int end, int[] result, int out) {
+        while (start < end) {
+            int count = Math.min(end - start, MAX_COUNT);
+            result[out++] = count -1;
+            for (int i = 0; i < count; i++) {
+                result[out++] = pixels[start + i] & 0xFFFF;
+            }
+            start += count;
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import de.ubergeek.imageconverter.Converter.Mode;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Packs several color reduced images into one sheet, which is written as a
+ * single data array plus a table with the position and size of each image
+ * (and its offset, if the images are trimmed). Images are addressed by their
+ * index in the table, so the device finds an image without searching. The
+ * table uses the smallest unsigned type (8 or 16 bit) its values fit in.
+ * The images are placed with a skyline bottom-left packer. As reduced images
+ * are padded to the byte grouping of their mode (width for MONOH and the
+ * formats with less than a byte per pixel, height for MONOV), every position
+ * within the sheet is aligned to it as well.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+final class SpriteAtlas {
+
+    /**
+     * Sheet widths tried by the packer, relative to the square root of the
+     * total area of all images.
+     */
+    private final static double[] WIDTH_FACTORS = { 1, 1.25, 1.5, 2 };
+
+    /**
+     * Largest coordinate or size the table can hold (16 bit).
+     */
+    private final static int MAX_TABLE_VALUE = 0xFFFF;
+
+    /**
+     * Image within the atlas.
+     */
+    private static class Entry {
+        final String name;
+        final BufferedImage image;
+        final Point offset;
+        int x;
+        int y;
+
+        Entry(String name, BufferedImage image, Point offset) {
+            this.name = name;
+            this.image = image;
+            this.offset = offset;
+        }
+    }
+
+    // <editor-fold desc="Properties">
+
+    /**
+     * Options of the atlas (mode, variable name and type etc.).
+     */
+    private final ConverterOptions options;
+
+    /**
+     * Images in the order they have been added.
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    private int width;
+
+    private int height;
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Constructors">
+
+    /**
+     * Creates an empty atlas.
+     * @param options Options of the atlas; the variable name is used for the
+     * data array and as prefix for the table and the image indices
+     */
+    SpriteAtlas(ConverterOptions options) {
+        this.options = options;
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Public methods">
+
+    /**
+     * Adds the image currently loaded by the given converter.
+     * @param name Name of the image (used for its index constant)
+     * @param converter Converter with the loaded image
+     * @param imageOptions Options for the color reduction of the image
+     */
+    void add(String name, Converter converter, ConverterOptions imageOptions) {
+        if (imageOptions.getMode() != options.getMode()) throw new IllegalArgumentException("All images of an atlas must use the same mode");
+        var indexName = getIndexName(name);
+        for (var entry : entries) {
+            if (getIndexName(entry.name).equals(indexName)) {
+                throw new IllegalArgumentException("Duplicate image name " + name + " (index constant " + indexName + ")");
+            }
+        }
+        var image = (BufferedImage)converter.createReducedImage(imageOptions);
+        Point offset = null;
+        if (imageOptions.isTrim()) {
+            var bounds = converter.getTrimBounds(imageOptions);
+            offset = new Point(bounds.x, bounds.y);
+        }
+        entries.add(new Entry(name, image, offset));
+    }
+
+    /**
+     * Packs the images and creates the source code of the atlas.
+     * @param stats Statistics to be updated or null
+     * @return Generated source code
+     */
+    String createSourceCode(ConversionStats stats) {
+        if (entries.isEmpty()) throw new IllegalStateException("Atlas is empty");
+        pack();
+        var sb = new StringBuilder();
+        var nl = System.lineSeparator();
+        var name = options.getVariableName();
+        sb.append("// Atlas: ").append(entries.size()).append(" images").append(nl);
+        sb.append(Converter.createSourceCode(createImage(), options, stats));
+
+        // Table: one line per image, in the order of the indices
+        boolean trimmed = entries.stream().anyMatch(entry -> entry.offset != null);
+        sb.append("// x, y, width, height").append(trimmed ? ", offset x, offset y" : "").append(nl);
+        sb.append(getTableType()).append(" ").append(name).append("_table[] = {").append(nl);
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            sb.append(entry.x).append(", ").append(entry.y).append(", ")
+                .append(entry.image.getWidth()).append(", ").append(entry.image.getHeight());
+            if (trimmed) {
+                var offset = (entry.offset != null) ? entry.offset : new Point();
+                sb.append(", ").append(offset.x).append(", ").append(offset.y);
+            }
+            if (i < entries.size() -1) sb.append(",");
+            sb.append(" // ").append(entry.name).append(nl);
+        }
+        sb.append("};").append(nl).append(nl);
+
+        // Index constants
+        sb.append("enum {").append(nl);
+        for (int i = 0; i < entries.size(); i++) {
+            sb.append("    ").append(getIndexName(entries.get(i).name)).append(" = ").append(i);
+            sb.append(i < entries.size() -1 ? "," : "").append(nl);
+        }
+        sb.append("};").append(nl).append(nl);
+        return sb.toString();
+    }
+
+    // </editor-fold>
+
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Places all images: each candidate sheet width is packed and the one
+     * with the smallest sheet area is kept.
+     */
+    private void pack() {
+        var sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingInt((Entry entry) -> entry.image.getHeight())
+            .thenComparingInt(entry -> entry.image.getWidth())
+            .reversed());
+
+        int minWidth = 0;
+        long area = 0;
+        for (var entry : entries) {
+            minWidth = Math.max(minWidth, entry.image.getWidth());
+            area += (long)entry.image.getWidth() *entry.image.getHeight();
+        }
+        int alignment = ColorFormats.getHorizontalAlignment(options.getMode());
+
+        int[] best = null;
+        long bestArea = Long.MAX_VALUE;
+        for (var factor : WIDTH_FACTORS) {
+            int sheetWidth = Math.max(minWidth, (int)Math.ceil(Math.sqrt(area) *factor));
+            sheetWidth = (sheetWidth +alignment -1) /alignment *alignment;
+            var positions = new int[sorted.size() *2];
+            int sheetHeight = packSkyline(sorted, sheetWidth, positions);
+
+            // The sheet may be narrower than the width it was packed into
+            sheetWidth = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                sheetWidth = Math.max(sheetWidth, positions[i *2] + sorted.get(i).image.getWidth());
+            }
+            if ((long)sheetWidth *sheetHeight < bestArea) {
+                bestArea = (long)sheetWidth *sheetHeight;
+                best = positions;
+                width = sheetWidth;
+                height = sheetHeight;
+            }
+        }
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.get(i).x = best[i *2];
+            sorted.get(i).y = best[i *2 +1];
+        }
+    }
+
+    /**
+     * Packs the images in the given order into a sheet of the given width.
+     * The skyline is a list of segments (x, y, width) covering the sheet
+     * width; each image is placed on the segment where its top edge is
+     * lowest, the leftmost one if there are several.
+     * @param sorted Images in packing order
+     * @param sheetWidth Width of the sheet
+     * @param positions Receives x and y of each image
+     * @return Height of the sheet
+     */
+    private static int packSkyline(List<Entry> sorted, int sheetWidth, int[] positions) {
+        var skyline = new ArrayList<int[]>();
+        skyline.add(new int[] { 0, 0, sheetWidth });
+        int sheetHeight = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            int w = sorted.get(i).image.getWidth();
+            int h = sorted.get(i).image.getHeight();
+            int bestIndex = -1;
+            int bestY = Integer.MAX_VALUE;
+            for (int s = 0; s < skyline.size(); s++) {
+                int x = skyline.get(s)[0];
+                if (x + w > sheetWidth) break;
+                int y = 0;
+                for (int k = s, covered = 0; covered < w; k++) {
+                    y = Math.max(y, skyline.get(k)[1]);
+                    covered += skyline.get(k)[2];
+                }
+                if (y < bestY) {
+                    bestY = y;
+                    bestIndex = s;
+                }
+            }
+            int x = skyline.get(bestIndex)[0];
+            positions[i *2] = x;
+            positions[i *2 +1] = bestY;
+            sheetHeight = Math.max(sheetHeight, bestY + h);
+
+            // Replace the covered part of the skyline by the new segment
+            skyline.add(bestIndex, new int[] { x, bestY + h, w });
+            int s = bestIndex +1;
+            while (s < skyline.size() && skyline.get(s)[0] < x + w) {
+                var segment = skyline.get(s);
+                int end = segment[0] + segment[2];
+                if (end <= x + w) {
+                    skyline.remove(s);
+                } else {
+                    segment[2] = end - (x + w);
+                    segment[0] = x + w;
+                    break;
+                }
+            }
+
+            // Merge neighbouring segments of the same height
+            for (s = 0; s < skyline.size() -1; ) {
+                if (skyline.get(s)[1] == skyline.get(s +1)[1]) {
+                    skyline.get(s)[2] += skyline.get(s +1)[2];
+                    skyline.remove(s +1);
+                } else {
+                    s++;
+                }
+            }
+        }
+        return sheetHeight;
+    }
+
+    /**
+     * Copies the reduced images to their positions in a new sheet. Unused
+     * areas of the sheet are left at zero.
+     * @return Sheet of the type created for the mode
+     */
+    private BufferedImage createImage() {
+        int type = entries.get(0).image.getType();
+        var sheet = new BufferedImage(width, height, type);
+        var raster = sheet.getRaster();
+        for (var entry : entries) {
+            raster.setRect(entry.x, entry.y, entry.image.getRaster());
+        }
+        return sheet;
+    }
+
+    /**
+     * Returns the type of the table: uint8_t if all positions, sizes and
+     * offsets fit in 8 bits, uint16_t otherwise. The table is kept in flash
+     * memory (PROGMEM) if the image data is.
+     * @return C type expression
+     */
+    private String getTableType() {
+        int max = Math.max(width, height);
+        for (var entry : entries) {
+            if (entry.offset != null) max = Math.max(max, Math.max(entry.offset.x, entry.offset.y));
+        }
+        if (max > MAX_TABLE_VALUE) throw new IllegalStateException("Atlas is too large for a 16 bit table");
+        var type = (max <= 0xFF) ? "const uint8_t" : "const uint16_t";
+        return options.getVariableType().contains("PROGMEM") ? type + " PROGMEM" : type;
+    }
+
+    /**
+     * Returns the name of the index constant of an image.
+     * @param name Name of the image
+     * @return Constant name
+     */
+    private String getIndexName(String name) {
+        return (options.getVariableName() + "_" + name).replace('-', '_').toUpperCase(Locale.ROOT);
+    }
+
+    // </editor-fold>
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021 André Gewert <agewert@ubergeek.de>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.ubergeek.imageconverter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trip tests of the RLE compression: the encoded data is decoded the
+ * same way as by the C decoder in the README and must give identical pixels.
+ * @author André Gewert <agewert@ubergeek.de>
+ */
+public class RunLengthEncoderTest {
+
+    private final static int MAX_COUNT = 0x8000;
+
+    @Test
+    public void emptyImageGivesNoPackets() {
+        assertEquals(0, RunLengthEncoder.encode(new short[0], 0).length);
+    }
+
+    @Test
+    public void runsLongerThanMaxCountAreSplit() {
+        var pixels = new short[3 *MAX_COUNT + 1696];
+        Arrays.fill(pixels, (short)0xF800);
+        var words = assertRoundTrip(pixels);
+        assertArrayEquals(new int[] {
+            0xFFFF, 0xF800, 0xFFFF, 0xF800, 0xFFFF, 0xF800, 0x8000 | 1695, 0xF800
+        }, words);
+    }
+
+    @Test
+    public void runsAtMaxCountBoundary() {
+        var pixels = new short[MAX_COUNT];
+        Arrays.fill(pixels, (short)0x1234);
+        assertArrayEquals(new int[] { 0xFFFF, 0x1234 }, assertRoundTrip(pixels));
+
+        // One pixel more starts a packet of its own
+        pixels = Arrays.copyOf(pixels, MAX_COUNT +1);
+        pixels[MAX_COUNT] = 0x1234;
+        assertArrayEquals(new int[] { 0xFFFF, 0x1234, 0x0000, 0x1234 }, assertRoundTrip(pixels));
+    }
+
+    @Test
+    public void literalPacketsAreSplitAtMaxCount() {
+        var pixels = new short[2 *MAX_COUNT + 4464];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short)i;
+        }
+        var words = assertRoundTrip(pixels);
+        assertEquals(pixels.length + 3, words.length);
+        assertEquals(MAX_COUNT -1, words[0]);
+        assertEquals(MAX_COUNT -1, words[1 + MAX_COUNT]);
+        assertEquals(4464 -1, words[2 + 2 *MAX_COUNT]);
+    }
+
+    @Test
+    public void shortRunsStayWithinLiterals() {
+        short a = 0x0001, b = 0x0002, c = 0x0003, d = 0x0004, e = 0x0005, f = 0x0006;
+        var pixels = new short[] { a, b, b, c, c, c, d, e, e, f, f, f, f };
+        assertArrayEquals(new int[] {
+            2, a, b, b,
+            0x8002, c,
+            2, d, e, e,
+            0x8003, f
+        }, assertRoundTrip(pixels));
+    }
+
+    @Test
+    public void runsOfThreeStartAndEndTheImage() {
+        var pixels = new short[] { 7, 7, 7, 1, 2, 2, 9, 9, 9 };
+        assertArrayEquals(new int[] {
+            0x8002, 7,
+            2, 1, 2, 2,
+            0x8002, 9
+        }, assertRoundTrip(pixels));
+    }
+
+    @Test
+    public void randomPixelsRoundTrip() {
+        var random = new Random(42);
+        for (int n = 0; n < 200; n++) {
+            var pixels = new short[1 + random.nextInt(5000)];
+            int colors = 1 + random.nextInt(8);
+            for (int i = 0; i < pixels.length; ) {
+                short color = (short)(0x8000 + random.nextInt(colors));
+                int run = 1 + random.nextInt(random.nextBoolean() ? 3 : 40);
+                for (int j = 0; j < run && i < pixels.length; j++) {
+                    pixels[i++] = color;
+                }
+            }
+            assertRoundTrip(pixels);
+        }
+    }
+
+    @Test
+    public void compressedImageDecodesToUncompressedData() {
+        var image = new BufferedImage(97, 61, BufferedImage.TYPE_INT_RGB);
+        var random = new Random(7);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x < 40) ? 0x3366CC : (y % 3 == 0) ? random.nextInt() : 0xFFFFFF);
+            }
+        }
+        var converter = new Converter(image, "test");
+        var options = ConverterOptions.builder().setVariableName("test").setCreateAsciiArt(false).build();
+        var plain = toWords(converter.createPackedData(options));
+        var compressed = toWords(converter.createPackedData(options.toBuilder().setCompression(Converter.Compression.RLE).build()));
+        assertTrue(compressed.length < plain.length);
+        assertArrayEquals(plain, decode(compressed, plain.length));
+    }
+
+    // <editor-fold desc="Internal methods">
+
+    /**
+     * Encodes and decodes the given pixels and checks the result.
+     * @param pixels RGB565 pixels
+     * @return Encoded words
+     */
+    private static int[] assertRoundTrip(short[] pixels) {
+        var words = RunLengthEncoder.encode(pixels, pixels.length);
+        var expected = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            expected[i] = pixels[i] & 0xFFFF;
+        }
+        assertArrayEquals(expected, decode(words, pixels.length));
+        assertTrue("Encoded data too large", words.length <= pixels.length + pixels.length /MAX_COUNT +1);
+        return words;
+    }
+
+    /**
+     * Decodes RLE data like the C decoder in the README. All words must be
+     * used up by the given number of pixels.
+     * @param words Encoded words
+     * @param pixels Number of pixels (width * height)
+     * @return Decoded pixels
+     */
+    private static int[] decode(int[] words, int pixels) {
+        var out = new int[pixels];
+        int p = 0;
+        int o = 0;
+        int remaining = pixels;
+        while (remaining > 0) {
+            int header = words[p++];
+            int count = (header & 0x7FFF) +1;
+            if ((header & 0x8000) != 0) {
+                int color = words[p++];
+                for (int i = 0; i < count; i++) out[o++] = color;
+            } else {
+                System.arraycopy(words, p, out, o, count);
+                o += count;
+                p += count;
+            }
+            remaining -= count;
+        }
+        assertEquals("Unused words", words.length, p);
+        return out;
+    }
+
+    private static int[] toWords(byte[] data) {
+        var words = new int[data.length /2];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = ((data[i *2] & 0xFF) << 8) | (data[i *2 +1] & 0xFF);
+        }
+        return words;
+    }
+
+    // </editor-fold>
+
+}